@@ -23,6 +23,7 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,6 +38,7 @@ import org.luaj.vm2.Print;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.jse.JsePlatform;
 import org.luaj.vm2.luajc.LuaJC;
+import org.luaj.vm2.luajc.TieredLoader;
 
 
 /**
@@ -53,6 +55,8 @@ public class lua {
 		"  -i       enter interactive mode after executing 'script'\n" +
 		"  -v       show version information\n" +
 		"  -b      	use luajc bytecode-to-bytecode compiler (requires bcel on class path)\n" +
+		"  -j dir  	use luajc, keeping generated classes in directory 'dir'\n" +
+		"  -t      	interpret, then compile hot functions with luajc (requires bcel on class path)\n" +
 		"  -n      	nodebug - do not load debug library by default\n" +
 		"  -p      	print the prototype\n" +
 		"  -c enc  	use the supplied encoding 'enc' for input files\n" +
@@ -76,6 +80,8 @@ public class lua {
 		boolean processing = true;
 		boolean nodebug = false;
 		boolean luajc = false;
+		boolean tiered = false;
+		String cachedir = null;
 		Vector libs = null;
 		try {
 			// stateful argument processing
@@ -96,6 +102,14 @@ public class lua {
 					case 'b':
 						luajc = true;
 						break;
+					case 'j':
+						if ( ++i >= args.length )
+							usageExit();
+						cachedir = args[i];
+						break;
+					case 't':
+						tiered = true;
+						break;
 					case 'l':
 						if ( ++i >= args.length )
 							usageExit();
@@ -138,6 +152,8 @@ public class lua {
 			// new lua state
 			globals = nodebug? JsePlatform.standardGlobals(): JsePlatform.debugGlobals();
 			if ( luajc ) LuaJC.install(globals);
+			if ( cachedir != null ) LuaJC.install(globals, new File(cachedir));
+			if ( tiered ) TieredLoader.install(globals);
 			for ( int i=0, n=libs!=null? libs.size(): 0; i<n; i++ )
 				loadLibrary( (String) libs.elementAt(i) );
 			
@@ -154,6 +170,7 @@ public class lua {
 					switch ( args[i].charAt(1) ) {
 					case 'l':
 					case 'c':
+					case 'j':
 						++i;
 						break;
 					case 'e':
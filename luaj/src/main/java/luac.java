@@ -21,6 +21,8 @@
 ******************************************************************************/
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -34,6 +36,7 @@ import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.compiler.DumpState;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.lib.jse.ScriptBundle;
 
 
 /**
@@ -50,6 +53,8 @@ public class luac {
 		"  -o name  output to file 'name' (default is \"luac.out\")\n" +
 		"  -p       parse only\n" +
 		"  -s       strip debug information\n" +
+		"  -b       write a script bundle indexed by module name\n" +
+		"  -m dir   name bundled modules by path relative to 'dir' (default is \".\")\n" +
 		"  -e       little endian format for numbers\n" +
 		"  -i<n>    number format 'n', (n=0,1 or 4, default="+DumpState.NUMBER_FORMAT_DEFAULT+")\n" +
 		"  -v       show version information\n" +
@@ -70,6 +75,8 @@ public class luac {
 	private boolean versioninfo = false;
 	private boolean processing = true;
 	private String encoding = null;
+	private ScriptBundle.Writer bundle = null;
+	private String moduleroot = ".";
 
 	public static void main( String[] args ) throws IOException {
 		new luac( args );
@@ -101,6 +108,14 @@ public class luac {
 					case 's':
 						stripdebug = true;
 						break;
+					case 'b':
+						bundle = new ScriptBundle.Writer();
+						break;
+					case 'm':
+						if ( ++i >= args.length )
+							usageExit();
+						moduleroot = args[i];
+						break;
 					case 'e':
 						littleendian = true;
 						break;
@@ -143,13 +158,15 @@ public class luac {
 				for ( int i=0; i<args.length; i++ ) {
 					if ( ! processing || ! args[i].startsWith("-") ) {
 						String chunkname = args[i].substring(0,args[i].length()-4);
-						processScript( globals, new FileInputStream(args[i]), chunkname, fos );
+						String modname = bundle != null? modname(args[i]): null;
+						processScript( globals, new FileInputStream(args[i]), chunkname, modname, fos );
 					} else if ( args[i].length() <= 1 ) {
-						processScript( globals, System.in, "=stdin", fos );
+						processScript( globals, System.in, "=stdin", "stdin", fos );
 					} else {
 						switch ( args[i].charAt(1) ) {
 						case 'o':
 						case 'c':
+						case 'm':
 							++i;
 							break;
 						case '-':
@@ -158,6 +175,8 @@ public class luac {
 						}
 					}
 				}
+				if ( bundle != null )
+					bundle.write( fos );
 			} finally {
 				fos.close();
 			}
@@ -168,7 +187,18 @@ public class luac {
 		}
 	}
 	
-	private void processScript( Globals globals, InputStream script, String chunkname, OutputStream out ) throws IOException {
+	/** Module name of a script file, from its path relative to the module root */
+	private String modname( String filename ) throws IOException {
+		String root = new File(moduleroot).getCanonicalPath();
+		String path = new File(filename).getCanonicalPath();
+		if ( ! root.endsWith(File.separator) )
+			root += File.separator;
+		if ( ! path.startsWith(root) )
+			throw new IOException(filename+" is not under the module root "+moduleroot);
+		return ScriptBundle.toModname(path.substring(root.length()));
+	}
+	
+	private void processScript( Globals globals, InputStream script, String chunkname, String modname, OutputStream out ) throws IOException {
 		try {
 	        // create the chunk
 			script = new BufferedInputStream(script);
@@ -182,7 +212,13 @@ public class luac {
 
 	        // write out the chunk
 	        if (!parseonly) {
-	            DumpState.dump(chunk, out, stripdebug, numberformat, littleendian);
+	        	if (bundle != null) {
+	        		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	        		DumpState.dump(chunk, baos, stripdebug, numberformat, littleendian);
+	        		bundle.add(modname, baos.toByteArray());
+	        	} else {
+	        		DumpState.dump(chunk, out, stripdebug, numberformat, littleendian);
+	        	}
 	        }
 	        
 		} catch ( Exception e ) {
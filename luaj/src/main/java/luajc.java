@@ -231,11 +231,12 @@ public class luajc {
         	for ( Enumeration e = t.keys(); e.hasMoreElements(); ) {
         		String key = (String) e.nextElement();
         		byte[] bytes = (byte[]) t.get(key);
-        		if ( key.indexOf('/')>=0 ) {
-        			String d = (destdir!=null? destdir+"/": "")+key.substring(0,key.lastIndexOf('/'));
+        		String path = key.replace('.', '/');
+        		if ( path.indexOf('/')>=0 ) {
+        			String d = (destdir!=null? destdir+"/": "")+path.substring(0,path.lastIndexOf('/'));
         			new File(d).mkdirs();
         		}
-        		String destpath = (destdir!=null? destdir+"/": "") + key + ".class";
+        		String destpath = (destdir!=null? destdir+"/": "") + path + ".class";
     			if ( verbose )
     				System.out.println( "  "+destpath +" ("+bytes.length+" bytes)");
 	        	FileOutputStream fos = new FileOutputStream( destpath );
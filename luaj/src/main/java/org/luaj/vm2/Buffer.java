@@ -174,6 +174,35 @@ public final class Buffer {
 		return this;
 	}
 
+	/** 
+	 * Append the last digits of the absolute value of a number in a radix 
+	 * directly to the buffer, with leading zeros if it has fewer digits.
+	 * @param number the number to append, whose sign is ignored
+	 * @param radix the radix, from 2 to 36
+	 * @param ndigits number of digits to append
+	 * @param uppercase true to use upper case letters for digits over 9
+	 * @return {@code this} to allow call chaining
+	 */
+	public final Buffer appendDigits( long number, int radix, int ndigits, boolean uppercase ) {
+		makeroom( 0, ndigits );
+		final byte[] digits = uppercase? UPPER_DIGITS: LOWER_DIGITS;
+		long n = number < 0? number: -number;
+		for ( int i = offset + length + ndigits; --i >= offset + length; ) {
+			bytes[i] = digits[(int) -(n % radix)];
+			n /= radix;
+		}
+		length += ndigits;
+		return this;
+	}
+	
+	private static final byte[] LOWER_DIGITS = { 
+		'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f','g','h',
+		'i','j','k','l','m','n','o','p','q','r','s','t','u','v','w','x','y','z' };
+
+	private static final byte[] UPPER_DIGITS = { 
+		'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F','G','H',
+		'I','J','K','L','M','N','O','P','Q','R','S','T','U','V','W','X','Y','Z' };
+
 	/** Concatenate this buffer onto a {@link LuaValue}
 	 * @param lhs the left-hand-side value onto which we are concatenating {@code this} 
 	 * @return {@link Buffer} for use in call chaining.
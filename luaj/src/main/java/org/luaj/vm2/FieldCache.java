@@ -0,0 +1,198 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Inline cache for a table lookup with a constant {@link LuaString} key,
+ * used by {@link LuaClosure} for {@link Lua#OP_GETTABUP}, {@link Lua#OP_GETTABLE}
+ * and {@link Lua#OP_SELF}.
+ * <p>
+ * A cache remembers the hash position that satisfied the last lookup at one instruction,
+ * either directly in the indexed table, or in the table found through the
+ * {@code __index} field of its metatable.  The entry stays valid while
+ * {@link LuaTable#version} of each table involved is unchanged,
+ * which is the case until the position is reused for another key, the table is rehashed,
+ * or its metatable is changed.  A key removed from the position leaves a null value there,
+ * which the cache treats as a miss.
+ * <p>
+ * Instances are immutable, so a cache may be replaced at any time without locking.
+ * Tables with weak keys or values are never cached.
+ * Cached tables are held through weak references, so a cache kept in a static field of 
+ * a generated class, or in a {@link Prototype} shared by several {@link Globals}, 
+ * does not keep the tables of a discarded lua state reachable.
+ *
+ * @see LuaClosure
+ * @see Prototype
+ */
+abstract class FieldCache {
+
+	/** Number of cache misses at one instruction after which it is no longer cached. 
+	 * A refill for the table or metatable of the previous cache, after a change of its 
+	 * {@link LuaTable#version}, is not counted, so sites reading tables that are still 
+	 * being filled, such as {@code _ENV} while a script defines its globals, stay cached. */
+	static final int MAX_MISSES = 8;
+
+	/** Cache for an instruction that has seen too many different tables to be worth caching. */
+	static final FieldCache MEGAMORPHIC = new Miss(MAX_MISSES, null);
+
+	/** Number of misses at this instruction before this cache was created. */
+	final int misses;
+
+	FieldCache(int misses) {
+		this.misses = misses;
+	}
+
+	/** Return the cached value of {@code o[key]}, or null if the cache does not apply to {@code o}. */
+	abstract LuaValue get(LuaValue o, LuaString key);
+
+	/** Return true if this cache was created for {@code o}, or for a value with the same metatable. */
+	abstract boolean sameshape(LuaValue o);
+
+	/**
+	 * Create the cache to use after a miss for {@code o[key]}.
+	 * @param o the value that was indexed
+	 * @param key the constant key
+	 * @param previous the cache that missed, or null
+	 * @return the new cache for the instruction
+	 */
+	static FieldCache fill(LuaValue o, LuaString key, FieldCache previous) {
+		int misses = previous == null? 0: previous.sameshape(o)? previous.misses: previous.misses + 1;
+		if (misses >= MAX_MISSES)
+			return MEGAMORPHIC;
+		if (o instanceof LuaTable) {
+			LuaTable t = (LuaTable) o;
+			if (!isweak(t)) {
+				int i = t.hashindex(key);
+				if (i >= 0)
+					return new Direct(misses, t, i);
+			}
+		}
+		if (o instanceof LuaTable || o instanceof LuaString) {
+			LuaValue mt = o.getmetatable();
+			if (o instanceof LuaTable && ((LuaTable) o).m_metatable != mt)
+				return new Miss(misses, o);
+			if (mt instanceof LuaTable && !isweak((LuaTable) mt)) {
+				LuaTable m = (LuaTable) mt;
+				int index = m.hashindex(LuaValue.INDEX);
+				if (index >= 0 && m.hashValues[index] instanceof LuaTable) {
+					LuaTable c = (LuaTable) m.hashValues[index];
+					if (!isweak(c)) {
+						int i = c.hashindex(key);
+						if (i >= 0)
+							return new Inherited(misses, m, index, c, i);
+					}
+				}
+			}
+		}
+		return new Miss(misses, o);
+	}
+
+	private static boolean isweak(LuaTable t) {
+		return t.m_metatable != null && (t.m_metatable.useWeakKeys() || t.m_metatable.useWeakValues());
+	}
+
+	/** Cache for a key found directly in the hash part of one table. */
+	static final class Direct extends FieldCache {
+		private final WeakReference table;
+		private final int version;
+		private final int entry;
+
+		Direct(int misses, LuaTable table, int entry) {
+			super(misses);
+			this.table = new WeakReference(table);
+			this.version = table.version;
+			this.entry = entry;
+		}
+
+		LuaValue get(LuaValue o, LuaString key) {
+			LuaTable t = (LuaTable) table.get();
+			return o == t && t.version == version? t.hashValues[entry]: null;
+		}
+
+		boolean sameshape(LuaValue o) {
+			return o == table.get();
+		}
+	}
+
+	/** Cache for a key absent from a table or string,
+	 * but found in the {@code __index} table of its metatable. */
+	static final class Inherited extends FieldCache {
+		private final WeakReference metatable;
+		private final int metatableVersion;
+		private final int index;
+		private final WeakReference table;
+		private final int version;
+		private final int entry;
+
+		Inherited(int misses, LuaTable metatable, int index, LuaTable table, int entry) {
+			super(misses);
+			this.metatable = new WeakReference(metatable);
+			this.metatableVersion = metatable.version;
+			this.index = index;
+			this.table = new WeakReference(table);
+			this.version = table.version;
+			this.entry = entry;
+		}
+
+		LuaValue get(LuaValue o, LuaString key) {
+			LuaTable metatable = (LuaTable) this.metatable.get();
+			LuaTable table = (LuaTable) this.table.get();
+			if (metatable == null || table == null)
+				return null;
+			if (metatable.version != metatableVersion || table.version != version || metatable.hashValues[index] != table)
+				return null;
+			if (o instanceof LuaTable) {
+				LuaTable t = (LuaTable) o;
+				if (t.m_metatable != metatable || !t.hashget(key).isnil())
+					return null;
+			} else if (!(o instanceof LuaString) || LuaString.s_metatable != metatable) {
+				return null;
+			}
+			return table.hashValues[entry];
+		}
+
+		boolean sameshape(LuaValue o) {
+			Object mt = o instanceof LuaTable? (Object) ((LuaTable) o).m_metatable: o instanceof LuaString? LuaString.s_metatable: null;
+			return mt != null && mt == metatable.get();
+		}
+	}
+
+	/** Cache recording a lookup that could not be cached. */
+	static final class Miss extends FieldCache {
+		private final WeakReference value;
+
+		Miss(int misses, LuaValue o) {
+			super(misses);
+			this.value = o instanceof LuaTable? new WeakReference(o): null;
+		}
+
+		LuaValue get(LuaValue o, LuaString key) {
+			return null;
+		}
+
+		boolean sameshape(LuaValue o) {
+			return value != null && o == value.get();
+		}
+	}
+}
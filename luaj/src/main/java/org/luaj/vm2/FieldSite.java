@@ -0,0 +1,62 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Site of a table lookup with a constant string key in code generated by
+ * {@link org.luaj.vm2.luajc.LuaJC}, with an inline cache of the last lookup.
+ * <p>
+ * Each site in a generated class is held in a static field, and uses the same
+ * {@link FieldCache} guards on table identity and {@link LuaTable#version}
+ * as the interpreter uses for {@link Lua#OP_GETTABUP}, {@link Lua#OP_GETTABLE}
+ * and {@link Lua#OP_SELF}, so a hit costs a few field reads instead of a hash lookup.
+ *
+ * @see FieldCache
+ * @see LuaClosure
+ */
+public final class FieldSite {
+
+	private final LuaString key;
+	private FieldCache cache;
+
+	/** Construct a site for lookups with a constant key.
+	 * @param key the constant key
+	 */
+	public FieldSite(LuaString key) {
+		this.key = key;
+	}
+
+	/** Return {@code o[key]}, from the cache when it applies to o.
+	 * @param o the value to index
+	 * @return the value of the key, following {@code __index} as {@link LuaValue#get(LuaValue)} does
+	 */
+	public LuaValue get(LuaValue o) {
+		FieldCache c = cache;
+		LuaValue v;
+		if (c != null && (v = c.get(o, key)) != null)
+			return v;
+		v = o.get(key);
+		if (c != FieldCache.MEGAMORPHIC)
+			cache = FieldCache.fill(o, key, c);
+		return v;
+	}
+}
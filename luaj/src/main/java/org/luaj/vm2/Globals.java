@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.util.concurrent.Executor;
 
 import org.luaj.vm2.lib.BaseLib;
 import org.luaj.vm2.lib.DebugLib;
@@ -86,6 +87,7 @@ import org.luaj.vm2.lib.ResourceFinder;
  * <li>{@link #compiler} Current loaded {@link Compiler}, if any.
  * <li>{@link #undumper} Current loaded {@link Undumper}, if any.
  * <li>{@link #loader} Current loaded {@link Loader}, if any.
+ * <li>{@link #executor} Current {@link java.util.concurrent.Executor} used to run coroutines.
  * </ul>
  * 
  * <h3>Lua Environment Variables</h3>
@@ -129,6 +131,11 @@ public class Globals extends LuaTable {
 	/** The currently running thread.  Should not be changed by non-library code. */
 	public LuaThread running = new LuaThread(this);
 
+	/** The Executor that supplies the Java threads on which coroutines run.
+	 * @see LuaThread#PLATFORM_THREADS
+	 * @see LuaThread#virtualThreads() */
+	public Executor executor = LuaThread.PLATFORM_THREADS;
+
 	/** The BaseLib instance loaded into this Globals */
 	public BaseLib baselib;
 	
@@ -22,8 +22,12 @@
 package org.luaj.vm2;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 /**
@@ -76,6 +80,15 @@ import java.io.InputStream;
 * c.call();
 * } </pre>
 * 
+* Binary chunks can also be undumped directly from a {@link ByteBuffer}, 
+* such as a memory-mapped file, without the overhead of an {@link InputStream}:
+* <pre> {@code
+* FileChannel channel = new FileInputStream("main.luac").getChannel();
+* ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+* Prototype p = LoadState.undump(mapped, "main.lua");
+* } </pre>
+* When the buffer is backed by an array, string constants share that array rather than copying it.
+* 
 * @see Globals.Compiler
 * @see Globals.Undumper
 * @see LuaClosure
@@ -146,9 +159,12 @@ public class LoadState {
 	private int     luacSizeofLuaNumber;
 	private int 	luacNumberFormat;
 
-	/** input stream from which we are loading */
+	/** input stream from which we are loading, or null when loading from {@link #bb} */
 	public final DataInputStream is;
 
+	/** buffer from which we are loading, or null when loading from {@link #is} */
+	private final ByteBuffer bb;
+
 	/** Name of what is being loaded? */
 	String name;
 
@@ -171,12 +187,31 @@ public class LoadState {
 	 * @return the int value laoded.  
 	 **/
 	int loadInt() throws IOException {
+		if ( bb != null )
+			return bb.getInt();
 		is.readFully(buf,0,4);
 		return luacLittleEndian? 
 				(buf[3] << 24) | ((0xff & buf[2]) << 16) | ((0xff & buf[1]) << 8) | (0xff & buf[0]):
 				(buf[0] << 24) | ((0xff & buf[1]) << 16) | ((0xff & buf[2]) << 8) | (0xff & buf[3]);
 	}
 	
+	/** Load a byte from the input stream or buffer */
+	private byte readByte() throws IOException {
+		return bb != null? bb.get(): is.readByte();
+	}
+
+	/** Load an unsigned byte from the input stream or buffer */
+	private int readUnsignedByte() throws IOException {
+		return bb != null? bb.get() & 0xff: is.readUnsignedByte();
+	}
+
+	/** Check that the buffer holds another n bytes, so that a size read from a 
+	 * truncated chunk raises EOFException instead of moving past the limit */
+	private void require(long n) throws EOFException {
+		if ( n < 0 || n > bb.remaining() )
+			throw new EOFException("truncated binary chunk "+name);
+	}
+
 	/** Load an array of int values from the input stream
 	 * @return the array of int values laoded.  
 	 **/
@@ -185,6 +220,15 @@ public class LoadState {
 		if ( n == 0 )
 			return NOINTS;
 		
+		if ( bb != null ) {
+			require( ((long) n) << 2 );
+			int[] array = new int[n];
+			int position = bb.position();
+			bb.asIntBuffer().get(array);
+			bb.position(position + (n << 2));
+			return array;
+		}
+
 		// read all data at once
 		int m = n << 2;
 		if ( buf.length < m )
@@ -221,6 +265,19 @@ public class LoadState {
 		int size = this.luacSizeofSizeT == 8? (int) loadInt64(): loadInt();
 		if ( size == 0 )
 			return null;
+		if ( bb != null ) {
+			require( size );
+			if ( bb.hasArray() ) {
+				// share the backing array, skipping the trailing '\0'
+				int position = bb.position();
+				bb.position(position + size);
+				return LuaString.valueUsing( bb.array(), bb.arrayOffset() + position, size - 1 );
+			}
+			byte[] bytes = new byte[size - 1];
+			bb.get( bytes );
+			bb.get();
+			return LuaString.valueUsing( bytes, 0, bytes.length );
+		}
 		byte[] bytes = new byte[size];
 		is.readFully( bytes, 0, size );
 		return LuaString.valueUsing( bytes, 0, bytes.length - 1 );
@@ -273,12 +330,12 @@ public class LoadState {
 		int n = loadInt();
 		LuaValue[] values = n>0? new LuaValue[n]: NOVALUES;
 		for ( int i=0; i<n; i++ ) {
-			switch ( is.readByte() ) {
+			switch ( readByte() ) {
 			case LUA_TNIL:
 				values[i] = LuaValue.NIL;
 				break;
 			case LUA_TBOOLEAN:
-				values[i] = (0 != is.readUnsignedByte()? LuaValue.TRUE: LuaValue.FALSE);
+				values[i] = (0 != readUnsignedByte()? LuaValue.TRUE: LuaValue.FALSE);
 				break;
 			case LUA_TINT:
 				values[i] = LuaInteger.valueOf( loadInt() );
@@ -307,8 +364,8 @@ public class LoadState {
 		int n = loadInt();
 		f.upvalues = n>0? new Upvaldesc[n]: NOUPVALDESCS;
 		for (int i=0; i<n; i++) {
-			boolean instack = is.readByte() != 0;
-			int idx = ((int) is.readByte()) & 0xff;
+			boolean instack = readByte() != 0;
+			int idx = readUnsignedByte();
 			f.upvalues[i] = new Upvaldesc(null, instack, idx);
 		}
 	}
@@ -349,9 +406,9 @@ public class LoadState {
 //			f.source = p;
 		f.linedefined = loadInt();
 		f.lastlinedefined = loadInt();
-		f.numparams = is.readUnsignedByte();
-		f.is_vararg = is.readUnsignedByte();
-		f.maxstacksize = is.readUnsignedByte();
+		f.numparams = readUnsignedByte();
+		f.is_vararg = readUnsignedByte();
+		f.maxstacksize = readUnsignedByte();
 		f.code = loadIntArray();
 		loadConstants(f);
 		loadUpvalues(f);
@@ -370,17 +427,19 @@ public class LoadState {
 	 * @throws IOException if an i/o exception occurs. 
 	 */
 	public void loadHeader() throws IOException {
-		luacVersion = is.readByte();
-		luacFormat = is.readByte();
-		luacLittleEndian = (0 != is.readByte());
-		luacSizeofInt = is.readByte();
-		luacSizeofSizeT = is.readByte();
-		luacSizeofInstruction = is.readByte();
-		luacSizeofLuaNumber = is.readByte();
-		luacNumberFormat = is.readByte();
+		luacVersion = readByte();
+		luacFormat = readByte();
+		luacLittleEndian = (0 != readByte());
+		luacSizeofInt = readByte();
+		luacSizeofSizeT = readByte();
+		luacSizeofInstruction = readByte();
+		luacSizeofLuaNumber = readByte();
+		luacNumberFormat = readByte();
 		for (int i=0; i < LUAC_TAIL.length; ++i)
-			if (is.readByte() != LUAC_TAIL[i])
+			if (readByte() != LUAC_TAIL[i])
 				throw new LuaError("Unexpeted byte in luac tail of header, index="+i);
+		if ( bb != null )
+			bb.order(luacLittleEndian? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN);
 	}
 
 	/**
@@ -401,10 +460,50 @@ public class LoadState {
 		// load file as a compiled chunk
 		String sname = getSourceName(chunkname);
 		LoadState s = new LoadState( stream, sname );
-		s.loadHeader();
+		return s.loadChunk(sname);
+	}
+
+	/**
+	 * Load a lua binary chunk from a buffer, such as a memory-mapped file, 
+	 * if the bytes at its position are the lua signature.
+	 * <p>
+	 * The position of the buffer is advanced past the chunk, so that several chunks 
+	 * stored one after another can be loaded in turn.  
+	 * If the buffer is backed by an array, string constants of the prototype 
+	 * refer to that array instead of copies, so the array must not be modified afterwards.
+	 * @param buffer ByteBuffer to read from its current position
+	 * @param chunkname Name to apply to the loaded chunk
+	 * @return {@link Prototype} that was loaded, or null if the first 4 bytes were not the lua signature, 
+	 * in which case the position of the buffer is unchanged.
+	 * @throws IOException if the chunk is truncated
+	 */
+	public static Prototype undump(ByteBuffer buffer, String chunkname) throws IOException {
+		int position = buffer.position();
+		if ( buffer.remaining() < LUA_SIGNATURE.length 
+		   || buffer.get(position) != LUA_SIGNATURE[0] 
+		   || buffer.get(position+1) != LUA_SIGNATURE[1]
+	       || buffer.get(position+2) != LUA_SIGNATURE[2]
+		   || buffer.get(position+3) != LUA_SIGNATURE[3] )
+			return null;
+		buffer.position(position + LUA_SIGNATURE.length);
+		ByteOrder order = buffer.order();
+		try {
+			String sname = getSourceName(chunkname);
+			LoadState s = new LoadState( buffer, sname );
+			return s.loadChunk(sname);
+		} catch ( BufferUnderflowException e ) {
+			throw new EOFException("truncated binary chunk "+chunkname);
+		} finally {
+			buffer.order(order);
+		}
+	}
+
+	/** Load the header and main function of a chunk whose signature has been read */
+	private Prototype loadChunk(String sname) throws IOException {
+		loadHeader();
 
 		// check format
-		switch ( s.luacNumberFormat ) {
+		switch ( luacNumberFormat ) {
 		case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
 		case NUMBER_FORMAT_INTS_ONLY:
 		case NUMBER_FORMAT_NUM_PATCH_INT32:
@@ -412,7 +511,7 @@ public class LoadState {
 		default:
 			throw new LuaError("unsupported int size");
 		}
-		return s.loadFunction( LuaString.valueOf(sname) );
+		return loadFunction( LuaString.valueOf(sname) );
 	}
 	
 	/**
@@ -433,6 +532,14 @@ public class LoadState {
 	private LoadState( InputStream stream, String name ) {
 		this.name = name;
 		this.is = new DataInputStream( stream );
+		this.bb = null;
+	}
+
+	/** Private constructor for create a load state reading from a buffer */
+	private LoadState( ByteBuffer buffer, String name ) {
+		this.name = name;
+		this.is = null;
+		this.bb = buffer;
 	}
 	
 	private static final class GlobalsUndumper implements Globals.Undumper {
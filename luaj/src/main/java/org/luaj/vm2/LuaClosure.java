@@ -21,6 +21,8 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import org.luaj.vm2.lib.MathLib;
+
 /**
  * Extension of {@link LuaFunction} which executes lua bytecode. 
  * <p>
@@ -73,6 +75,29 @@ package org.luaj.vm2;
  * <li>{@link LuaValue#invokemethod(String,Varargs)}</li>
  * <li> ...</li> 
  * </ul>
+ * <p>
+ * Arithmetic, comparison and numeric for-loop instructions whose operands are 
+ * both {@link LuaNumber}s are evaluated directly on primitive values 
+ * rather than through double dispatch on {@link LuaValue}, 
+ * and only the result is boxed when it is stored into a register. 
+ * <p>
+ * Lookups with constant string keys by {@link Lua#OP_GETTABUP}, {@link Lua#OP_GETTABLE} 
+ * and {@link Lua#OP_SELF} go through a per-instruction {@link FieldCache} 
+ * kept in the {@link Prototype}, so global and method lookups usually skip the 
+ * hash and {@code __index} lookups.
+ * <p>
+ * Register stacks used while executing are taken from a small per-thread pool 
+ * of free stacks and returned to it when the call completes, 
+ * so calls into small lua functions do not allocate a new stack each time.
+ * Threads running coroutines do not pool stacks, so suspended coroutines stay small.
+ * Arguments passed to a call and values returned from it never alias the pooled stack, 
+ * since a callee such as a coroutine may keep its arguments after the caller returns, 
+ * and open {@link UpValue}s are closed before the stack is released.
+ * <p>
+ * Calls with a fixed number of results, such as {@code local ok, err = f()} and 
+ * generic for loops, go through {@link LuaFunction#invoke(Varargs, LuaValue[], int, int)}, 
+ * so a closure returning a fixed number of values stores them straight into the 
+ * registers of the calling closure instead of returning a new {@link Varargs}.
  * @see LuaValue
  * @see LuaFunction
  * @see LuaValue#isclosure()
@@ -89,6 +114,9 @@ public class LuaClosure extends LuaFunction {
 	public UpValue[] upValues;
 	
 	final Globals globals;
+
+	/* compiled function used in place of this closure once the prototype is promoted by a tiered loader */
+	private LuaFunction compiled;
 	
 	/** Create a closure around a Prototype with a specific environment.
 	 * If the prototype has upvalues, the environment will be written into the first upvalue.
@@ -128,18 +156,115 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	private LuaValue[] getNewStack() {
-		int max = p.maxstacksize;
-		LuaValue[] stack = new LuaValue[max];
-		System.arraycopy(NILS, 0, stack, 0, max);
-		return stack;
+		StackPool pool = (StackPool) STACKS.get();
+		return pool != null? pool.acquire(p.maxstacksize): StackPool.newStack(p.maxstacksize);
+	}
+
+	/** Per-thread pools of register stacks, or null on threads running a coroutine. */
+	private static final ThreadLocal STACKS = new ThreadLocal() {
+		protected Object initialValue() {
+			return new StackPool();
+		}
+	};
+
+	/** Turn pooling of register stacks on or off for the current thread.  
+	 * Coroutine threads do not pool, so that a suspended coroutine holds no free stacks,
+	 * and a pooled thread keeps none once its coroutine is done. 
+	 * @param pooled false while the thread runs a coroutine, true afterwards */
+	static void poolStacks(boolean pooled) {
+		if (pooled)
+			STACKS.remove();
+		else
+			STACKS.set(null);
+	}
+
+	/** Free nil-filled register stacks of any size, most recently released last.
+	 * Only used by the Java thread which owns it, so no synchronization is needed. */
+	static final class StackPool {
+		/** Maximum number of free stacks retained. */
+		static final int MAX_FREE = 16;
+
+		/** Free stacks, created on the first release. */
+		LuaValue[][] free;
+		int count;
+
+		static LuaValue[] newStack(int size) {
+			LuaValue[] stack = new LuaValue[size];
+			System.arraycopy(NILS, 0, stack, 0, size);
+			return stack;
+		}
+
+		LuaValue[] acquire(int size) {
+			for (int i = count; --i >= 0; ) {
+				LuaValue[] stack = free[i];
+				if (stack.length == size) {
+					free[i] = free[--count];
+					free[count] = null;
+					return stack;
+				}
+			}
+			return newStack(size);
+		}
+
+		void release(LuaValue[] stack) {
+			int size = stack.length;
+			if (size > NILS.length || count >= MAX_FREE)
+				return;
+			System.arraycopy(NILS, 0, stack, 0, size);
+			if (free == null)
+				free = new LuaValue[MAX_FREE][];
+			free[count++] = stack;
+		}
+	}
+
+	/** Construct a {@link Varargs} of stack values that does not alias the stack, 
+	 * so that it remains valid once the stack has been released to the pool. */
+	private static Varargs copyOf(LuaValue[] stack, int offset, int length, Varargs more) {
+		switch (length) {
+		case 0: return more;
+		case 1: return varargsOf(stack[offset], more);
+		case 2: if (more.narg() == 0) return new Varargs.PairVarargs(stack[offset], stack[offset+1]);
+			// fall through
+		default:
+			LuaValue[] values = new LuaValue[length];
+			System.arraycopy(stack, offset, values, 0, length);
+			return new Varargs.ArrayVarargs(values, more);
+		}
 	}
 	
+	/** Count a call toward promotion of the prototype by its tiered loader,
+	 * and return the compiled function that replaces this closure once there is one. */
+	private LuaFunction tiered() {
+		if (compiled == null) {
+			Prototype.Compiled c = p.compiled;
+			if (c != null)
+				compiled = c.bind(upValues, globals);
+			else if (--p.hotcount == 0)
+				p.tier.promote(p);
+		}
+		return compiled;
+	}
+
+	/** Count a loop iteration toward promotion of the prototype by its tiered loader. */
+	private static void backedge(Prototype p) {
+		if (--p.hotcount == 0)
+			p.tier.promote(p);
+	}
+
 	public final LuaValue call() {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) return f.call();
+		}
 		LuaValue[] stack = getNewStack();
 		return execute(stack,NONE).arg1();
 	}
 
 	public final LuaValue call(LuaValue arg) {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) return f.call(arg);
+		}
 		LuaValue[] stack = getNewStack();
 		switch ( p.numparams ) {
 		default: stack[0]=arg; return execute(stack,NONE).arg1();
@@ -148,6 +273,10 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) return f.call(arg1, arg2);
+		}
 		LuaValue[] stack = getNewStack();
 		switch ( p.numparams ) {
 		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
@@ -157,6 +286,10 @@ public class LuaClosure extends LuaFunction {
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) return f.call(arg1, arg2, arg3);
+		}
 		LuaValue[] stack = getNewStack();
 		switch ( p.numparams ) {
 		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
@@ -171,17 +304,42 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final Varargs onInvoke(Varargs varargs) {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) return f.onInvoke(varargs);
+		}
 		LuaValue[] stack = getNewStack();
 		for ( int i=0; i<p.numparams; i++ )
 			stack[i] = varargs.arg(i+1);
 		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
 	}
+
+	public final void invoke(Varargs varargs, LuaValue[] ret, int offset, int n) {
+		if (p.tier != null) {
+			LuaFunction f = tiered();
+			if (f != null) { f.invoke(varargs, ret, offset, n); return; }
+		}
+		LuaValue[] stack = getNewStack();
+		for ( int i=0; i<p.numparams; i++ )
+			stack[i] = varargs.arg(i+1);
+		Varargs v = execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE,ret,offset,n);
+		if (v != null)
+			v.eval().copyto(ret, offset, n);
+	}
 	
 	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
+		return execute(stack, varargs, null, 0, 0);
+	}
+	
+	/** Execute the bytecode.  When ret is not null, a return of a fixed number of values 
+	 * stores n values into ret from offset and returns null. */
+	private Varargs execute( LuaValue[] stack, Varargs varargs, LuaValue[] ret, int retoffset, int retn ) {
 		// loop through instructions
 		int i,a,b,c,pc=0,top=0;
-		LuaValue o;
+		LuaValue o,r;
 		Varargs v = NONE;
+		Prototype p = this.p;
+		UpValue[] upValues = this.upValues;
 		int[] code = p.code;
 		LuaValue[] k = p.k;
 		
@@ -230,11 +388,13 @@ public class LuaClosure extends LuaFunction {
 	                continue;
 					
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-					stack[a] = upValues[i>>>23].getValue().get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = upValues[i>>>23].getValue();
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? getk(p, o, k[c&0x0ff], pc): o.get(stack[c]);
 					continue;
 	                
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = stack[i>>>23];
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? getk(p, o, k[c&0x0ff], pc): o.get(stack[c]);
 					continue;
 					
 				case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
@@ -255,31 +415,43 @@ public class LuaClosure extends LuaFunction {
 					
 				case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
 					stack[a+1] = (o = stack[i>>>23]);
-					stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? getk(p, o, k[c&0x0ff], pc): o.get(stack[c]);
 					continue;
 					
 				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? LuaDouble.valueOf(o.todouble() + r.todouble()): o.add(r);
 					continue;
 					
 				case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? LuaDouble.valueOf(o.todouble() - r.todouble()): o.sub(r);
 					continue;
 					
 				case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? LuaDouble.valueOf(o.todouble() * r.todouble()): o.mul(r);
 					continue;
 					
 				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? LuaDouble.ddiv(o.todouble(), r.todouble()): o.div(r);
 					continue;
 					
 				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? LuaDouble.dmod(o.todouble(), r.todouble()): o.mod(r);
 					continue;
 					
 				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).pow((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber? MathLib.dpow(o.todouble(), r.todouble()): o.pow(r);
 					continue;
 					
 				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
@@ -310,7 +482,9 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
-					pc  += (i>>>14)-0x1ffff;
+					pc  += (b=(i>>>14)-0x1ffff);
+					if (b < 0 && p.tier != null)
+						backedge(p);
 					if (a > 0) {
 						for (--a, b = openups.length; --b>=0; )
 							if (openups[b] != null && openups[b].index >= a) {
@@ -321,17 +495,23 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? o.todouble() == r.todouble(): o.eq_b(r)) != (a!=0) ) 
 						++pc;
 					continue;
 					
 				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? o.todouble() < r.todouble(): o.lt_b(r)) != (a!=0) ) 
 						++pc;
 					continue;
 					
 				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? o.todouble() <= r.todouble(): o.lteq_b(r)) != (a!=0) ) 
 						++pc;
 					continue;
 					
@@ -363,13 +543,17 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						c = (i>>14)&0x1ff;
-						v = stack[a].invoke(b>0? 
-							varargsOf(stack, a+1, b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v));  // from prev top 
+						v = b>0? 
+							copyOf(stack, a+1, b-1, NONE): // exact arg count
+							copyOf(stack, a+1, top-v.narg()-(a+1), v);  // from prev top 
 						if ( c > 0 ) {
-							v.copyto(stack, a, c-1);
+							if ((o = stack[a]) instanceof LuaFunction)
+								((LuaFunction) o).invoke(v, stack, a, c-1);
+							else
+								o.invoke(v).copyto(stack, a, c-1);
 							v = NONE;
 						} else {
+							v = stack[a].invoke(v);
 							top = a + v.narg();
 							v = v.dealias();
 						}
@@ -377,6 +561,37 @@ public class LuaClosure extends LuaFunction {
 					}
 					
 				case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+					if ((o = stack[a]) instanceof LuaClosure && (b = i>>>23) > 0) {
+						LuaClosure cl = (LuaClosure) o;
+						Prototype np = cl.p;
+						if (np.maxstacksize <= stack.length && np.tier == null && cl.globals == globals) {
+							// run the lua callee in place, in this frame and stack
+							if (openups != null)
+								for ( int u=openups.length; --u>=0; )
+									if ( openups[u] != null ) {
+										openups[u].close();
+										openups[u] = null;
+									}
+							c = Math.min(b-1, np.numparams);
+							varargs = np.is_vararg!=0? copyOf(stack, a+1+c, b-1-c, NONE): NONE;
+							System.arraycopy(stack, a+1, stack, 0, c);
+							System.arraycopy(NILS, 0, stack, c, stack.length-c);
+							p = np;
+							upValues = cl.upValues;
+							code = p.code;
+							k = p.k;
+							if (openups == null && p.p.length > 0)
+								openups = new UpValue[stack.length];
+							if (globals != null && globals.debuglib != null) {
+								globals.debuglib.onReturn();
+								globals.debuglib.onCall( cl, varargs, stack );
+							}
+							top = 0;
+							v = NONE;
+							pc = -1;
+							continue;
+						}
+					}
 					switch ( i & Lua.MASK_B ) {
 					case (1<<Lua.POS_B): return new TailcallVarargs(stack[a], NONE);
 					case (2<<Lua.POS_B): return new TailcallVarargs(stack[a], stack[a+1]);
@@ -385,55 +600,94 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							copyOf(stack,a+1,b-1,NONE): // exact arg count
+							copyOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
 						return new TailcallVarargs( stack[a], v );
 					}
 					
 				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 					b = i>>>23;
+					if ( ret != null && b > 0 ) {
+						for ( int j=0; j<retn; ++j )
+							ret[retoffset+j] = j<b-1? stack[a+j]: NIL;
+						return null;
+					}
 					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
+					case 0: return copyOf(stack, a, top-v.narg()-a, v); 
 					case 1: return NONE;
 					case 2: return stack[a]; 
 					default:
-						return varargsOf(stack, a, b-1);
+						return copyOf(stack, a, b-1, NONE);
 					}
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
 					{
+						if (p.tier != null)
+							backedge(p);
 			            LuaValue limit = stack[a + 1];
 						LuaValue step  = stack[a + 2];
-						LuaValue idx   = step.add(stack[a]);
-			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
-		                    stack[a] = idx;
-		                    stack[a + 3] = idx;
-		                    pc += (i>>>14)-0x1ffff;
-			            }
+						if ((o = stack[a]) instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							// integer loop: index stays within int range because it is bounded by limit
+							int s = ((LuaInteger) step).v;
+							long idx = (long) ((LuaInteger) o).v + s;
+							if (s > 0? idx <= ((LuaInteger) limit).v: idx >= ((LuaInteger) limit).v) {
+								stack[a] = stack[a + 3] = LuaInteger.valueOf((int) idx);
+								pc += (i>>>14)-0x1ffff;
+							}
+						} else if (o instanceof LuaNumber && limit instanceof LuaNumber && step instanceof LuaNumber) {
+							double s = step.todouble();
+							double idx = o.todouble() + s;
+							if (s > 0? idx <= limit.todouble(): idx >= limit.todouble()) {
+								stack[a] = stack[a + 3] = LuaDouble.valueOf(idx);
+								pc += (i>>>14)-0x1ffff;
+							}
+						} else {
+							LuaValue idx = step.add(o);
+							if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
+								stack[a] = idx;
+								stack[a + 3] = idx;
+								pc += (i>>>14)-0x1ffff;
+							}
+						}
 					}
 					continue;
 					
 				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
 					{
-						LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
-						LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
-						LuaValue step  = stack[a + 2].checknumber("'for' step must be a number");
-						stack[a] = init.sub(step);
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
+						LuaValue init  = stack[a];
+						LuaValue limit = stack[a + 1];
+						LuaValue step  = stack[a + 2];
+						if (init instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							stack[a] = LuaInteger.valueOf((long) ((LuaInteger) init).v - ((LuaInteger) step).v);
+						} else if (init instanceof LuaNumber && limit instanceof LuaNumber && step instanceof LuaNumber) {
+							stack[a] = LuaDouble.valueOf(init.todouble() - step.todouble());
+						} else {
+							init  = init.checknumber("'for' initial value must be a number");
+							limit = limit.checknumber("'for' limit must be a number");
+							step  = step.checknumber("'for' step must be a number");
+							stack[a] = init.sub(step);
+							stack[a + 1] = limit;
+							stack[a + 2] = step;
+						}
 						pc += (i>>>14)-0x1ffff;
 					}
 					continue;
 
 				case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
 					c = (i>>14) & 0x1ff;
-					while (--c >= 0)
-						stack[a+3+c] = v.arg(c+1);
-					v = NONE;
+					if ((o = stack[a]) instanceof LuaFunction) {
+						((LuaFunction) o).invoke(varargsOf(stack[a+1],stack[a+2]), stack, a+3, c);
+					} else {
+						v = o.invoke(varargsOf(stack[a+1],stack[a+2]));
+						while (--c >= 0)
+							stack[a+3+c] = v.arg(c+1);
+						v = NONE;
+					}
 					continue;
 
 				case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+					if (p.tier != null)
+						backedge(p);
 					if (!stack[a+1].isnil()) { /* continue loop? */
 						stack[a] = stack[a+1];  /* save control varible. */
 						pc += (i>>>14)-0x1ffff;
@@ -510,9 +764,31 @@ public class LuaClosure extends LuaFunction {
 						openups[u].close();
 			if (globals != null && globals.debuglib != null)
 				globals.debuglib.onReturn();
+			StackPool pool = (StackPool) STACKS.get();
+			if (pool != null)
+				pool.release(stack);
 		}
 	}
 
+	/** Index a value with a constant key, using the inline cache for the instruction at pc 
+	 * when the key is a string.
+	 * @see FieldCache */
+	private static LuaValue getk(Prototype p, LuaValue o, LuaValue key, int pc) {
+		if (!(key instanceof LuaString))
+			return o.get(key);
+		FieldCache[] caches = p.fieldcaches;
+		if (caches == null)
+			p.fieldcaches = caches = new FieldCache[p.code.length];
+		FieldCache cache = caches[pc];
+		LuaValue v;
+		if (cache != null && (v = cache.get(o, (LuaString) key)) != null)
+			return v;
+		v = o.get(key);
+		if (cache != FieldCache.MEGAMORPHIC)
+			caches[pc] = FieldCache.fill(o, (LuaString) key, cache);
+		return v;
+	}
+
 	/**
 	 *  Run the error hook if there is one
 	 *  @param msg the message to use in error hook processing. 
@@ -86,4 +86,19 @@ public class LuaFunction extends LuaValue {
 	public String name() {
 		return classnamestub();
 	}
+
+	/** Call the function and store its first n results in a register stack, padded with nil.
+	 * <p>
+	 * This is used by {@link LuaClosure} for calls with a fixed number of results,
+	 * {@link Lua#OP_CALL} with C &gt; 0 and {@link Lua#OP_TFORCALL}.
+	 * Functions that return more than one value override it to store the values directly,
+	 * without constructing a {@link Varargs} for them.
+	 * @param args the arguments to the call
+	 * @param stack the registers of the caller
+	 * @param offset the register to store the first result in
+	 * @param n the number of results to store
+	 */
+	public void invoke(Varargs args, LuaValue[] stack, int offset, int n) {
+		invoke(args).copyto(stack, offset, n);
+	}
 }
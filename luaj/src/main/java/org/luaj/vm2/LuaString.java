@@ -27,6 +27,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.luaj.vm2.lib.MathLib;
 
@@ -40,7 +41,8 @@ import org.luaj.vm2.lib.MathLib;
  * {@link LuaString} values are not considered mutable once constructed, 
  * so multiple {@link LuaString} values can chare a single byte array.
  * <p>
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * Short {@link LuaString}s are pooled via a small cache of recent strings,
+ * or via a bounded {@link StringPool} when one is installed as {@link #s_pool}.
  * To ensure that as many string values as possible take advantage of this, 
  * Constructors are not exposed directly.  As with number, booleans, and nil, 
  * instance construction should be via {@link LuaValue#valueOf(byte[])} or similar API.
@@ -68,6 +70,23 @@ public class LuaString extends LuaValue {
 	 * read-only table since it is shared across all lua code in this Java VM.
 	 */
 	public static LuaValue s_metatable;
+
+	/** The pool in which short strings are interned, or null to use only the cache of recent short strings.
+	 * This is shared across all lua code in this Java VM, and is typically set once at startup,
+	 * or by setting the system property <code>"luaj.stringpool.capacity"</code> 
+	 * to the number of strings to hold.
+	 * @see StringPool
+	 */
+	public static StringPool s_pool;
+	static {
+		try {
+			String capacity = System.getProperty("luaj.stringpool.capacity");
+			if (capacity != null)
+				s_pool = new StringPool(Integer.parseInt(capacity.trim()));
+		} catch (Exception e) {
+			System.out.println(e.toString());
+		}
+	}
 	
 	/** The bytes for the string.  These <em><b>must not be mutated directly</b></em> because
 	 * the backing may be shared by multiple LuaStrings, and the hash code is 
@@ -83,6 +102,26 @@ public class LuaString extends LuaValue {
 	
 	/** The hashcode for this string.  Computed at construct time. */
 	private final int m_hashcode;
+	
+	/** Use of the backing array after the end of this string, one of {@link #TAIL_NONE}, 
+	 * {@link #TAIL_CONCAT}, or {@link #TAIL_OWNED}. */
+	private volatile int m_tail;
+	
+	/** The bytes after the end of this string are not this string's to use. */
+	private static final int TAIL_NONE = 0;
+	
+	/** This string is the exact result of a concatenation, so it may be concatenated onto again. */
+	private static final int TAIL_CONCAT = 1;
+	
+	/** This string is the result of a concatenation, and the unused bytes of the backing array 
+	 * after its end may be filled by the next concatenation onto it. */
+	private static final int TAIL_OWNED = 2;
+	
+	private static final AtomicIntegerFieldUpdater TAIL = AtomicIntegerFieldUpdater.newUpdater(LuaString.class, "m_tail");
+	
+	/** Minimum length of a concatenation that tracks its tail, 
+	 * below which strings are always copied into an array of their exact length. */
+	static final int CONCAT_TAIL_MIN_LENGTH = 256;
 
 	/** Size of cache of recent short strings. This is the maximum number of LuaStrings that 
 	 * will be retained in the cache of recent short strings.  Exposed to package for testing. */
@@ -130,6 +169,15 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
+		final StringPool pool = s_pool;
+		if (pool != null && len <= pool.maxLength()) {
+			final int hash = hashCode(bytes, off, len);
+			final LuaString t = pool.get(bytes, off, len, hash);
+			if (t != null) return t;
+			final LuaString s = valueFromCopy(bytes, off, len);
+			pool.put(s);
+			return s;
+		}
 		if (len > RECENT_STRINGS_MAX_LENGTH)
 			return valueFromCopy(bytes, off, len);
 		final int hash = hashCode(bytes, off, len);
@@ -159,6 +207,15 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer, or an equivalent string.
 	 */
 	static public LuaString valueUsing(byte[] bytes, int off, int len) {
+		final StringPool pool = s_pool;
+		if (pool != null && bytes.length <= pool.maxLength()) {
+			final int hash = hashCode(bytes, off, len);
+			final LuaString t = pool.get(bytes, off, len, hash);
+			if (t != null) return t;
+			final LuaString s = new LuaString(bytes, off, len);
+			pool.put(s);
+			return s;
+		}
 		if (bytes.length > RECENT_STRINGS_MAX_LENGTH)
 			return new LuaString(bytes, off, len);
 		final int hash = hashCode(bytes, off, len);
@@ -240,6 +297,12 @@ public class LuaString extends LuaValue {
 		this.m_hashcode = hashCode(bytes, offset, length);
 	}
 
+	/** Construct the result of a concatenation, with a given use of the bytes after its end. */
+	private LuaString(byte[] bytes, int offset, int length, int tail) {
+		this(bytes, offset, length);
+		this.m_tail = tail;
+	}
+
 	public boolean isstring() {
 		return true; 
 	}
@@ -311,12 +374,41 @@ public class LuaString extends LuaValue {
 	public Buffer   concat(Buffer rhs)        { return rhs.concatTo(this); }
 	public LuaValue concatTo(LuaNumber lhs)   { return concatTo(lhs.strvalue()); }
 	public LuaValue concatTo(LuaString lhs)   { 
-		byte[] b = new byte[lhs.m_length+this.m_length];
+		final int n = lhs.m_length+this.m_length;
+		if (n >= CONCAT_TAIL_MIN_LENGTH)
+			return concatTail(lhs, n);
+		byte[] b = new byte[n];
 		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
 		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
 		return valueUsing(b, 0, b.length);
 	}
 
+	/** 
+	 * Concatenate this onto a long string, so that repeatedly concatenating onto 
+	 * the result takes time linear in the final length.
+	 * <p>
+	 * A string concatenated onto for the second time is copied into an array with 
+	 * room for as many bytes again, and the result owns the unused bytes after its end. 
+	 * The next concatenation onto it copies only the right hand side into those bytes, 
+	 * and passes the rest of the room on to its own result. 
+	 * Ownership is taken with compare-and-set, so of several concatenations onto 
+	 * the same string only one fills its room, and the others copy.
+	 * Other strings sharing the array only see bytes before the end of the string, 
+	 * which are never changed.  
+	 */
+	private LuaString concatTail(LuaString lhs, int n) {
+		final int tail = lhs.m_tail;
+		if (tail == TAIL_OWNED && lhs.m_offset + n <= lhs.m_bytes.length && TAIL.compareAndSet(lhs, TAIL_OWNED, TAIL_NONE)) {
+			System.arraycopy(this.m_bytes, this.m_offset, lhs.m_bytes, lhs.m_offset + lhs.m_length, this.m_length);
+			return new LuaString(lhs.m_bytes, lhs.m_offset, n, TAIL_OWNED);
+		}
+		final boolean grow = tail != TAIL_NONE && n <= Integer.MAX_VALUE / 2;
+		byte[] b = new byte[grow? n * 2: n];
+		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
+		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
+		return new LuaString(b, 0, n, grow? TAIL_OWNED: TAIL_CONCAT);
+	}
+
 	// string comparison 
 	public int strcmp(LuaValue lhs)           { return -lhs.strcmp(this); }
 	public int strcmp(LuaString rhs) {
@@ -496,7 +588,7 @@ public class LuaString extends LuaValue {
 	}
 	
 	/** Return true if the bytes in the supplied range match this LuaStrings bytes. */
-	private boolean byteseq(byte[] bytes, int off, int len) {
+	boolean byteseq(byte[] bytes, int off, int len) {
 		return (m_length == len && equals(m_bytes, m_offset, bytes, off, len));
 	}
 	
@@ -586,9 +678,10 @@ public class LuaString extends LuaValue {
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf( byte b, int start ) {
-		for ( int i=start; i < m_length; ++i ) {
-			if ( m_bytes[m_offset+i] == b )
-				return i;
+		final byte[] a = m_bytes;
+		for ( int i=m_offset+start, end=m_offset+m_length; i < end; ++i ) {
+			if ( a[i] == b )
+				return i - m_offset;
 		}
 		return -1;
 	}
@@ -602,9 +695,50 @@ public class LuaString extends LuaValue {
 	public int indexOf( LuaString s, int start ) {
 		final int slen = s.length();
 		final int limit =  m_length - slen;
-		for ( int i=start; i <= limit; ++i ) {
-			if ( equals( m_bytes, m_offset+i, s.m_bytes, s.m_offset, slen ) )
-				return i;
+		if ( start > limit )
+			return -1;
+		switch ( slen ) {
+		case 0: return start;
+		case 1: return indexOf( s.m_bytes[s.m_offset], start );
+		}
+		if ( slen >= SKIP_SEARCH_MIN_LENGTH && limit - start >= SKIP_SEARCH_MIN_SCAN )
+			return skipSearch( s, start );
+		final byte[] a = m_bytes, b = s.m_bytes;
+		final int j = s.m_offset;
+		final byte first = b[j], last = b[j+slen-1];
+		for ( int i=m_offset+start, end=m_offset+limit; i <= end; ++i ) {
+			if ( a[i] == first && a[i+slen-1] == last && equals( a, i+1, b, j+1, slen-2 ) )
+				return i - m_offset;
+		}
+		return -1;
+	}
+	
+	/** Minimum length of a string searched for by {@link #skipSearch(LuaString, int)} */
+	private static final int SKIP_SEARCH_MIN_LENGTH = 4;
+	
+	/** Minimum number of positions to scan for {@link #skipSearch(LuaString, int)} to pay off */
+	private static final int SKIP_SEARCH_MIN_SCAN = 256;
+	
+	/**
+	 * Boyer-Moore-Horspool search for a string of at least 2 bytes, which looks at 
+	 * the byte under the end of the string at each position and skips ahead 
+	 * by up to the length of the string, so most bytes are never read.
+	 */
+	private int skipSearch( LuaString s, int start ) {
+		final int slen = s.length();
+		final byte[] a = m_bytes, b = s.m_bytes;
+		final int j = s.m_offset;
+		final int[] skip = new int[256];
+		for ( int k=0; k<256; k++ )
+			skip[k] = slen;
+		for ( int k=0; k<slen-1; k++ )
+			skip[b[j+k] & 0xff] = slen - 1 - k;
+		final byte first = b[j], last = b[j+slen-1];
+		for ( int i=m_offset+start, end=m_offset+m_length-slen; i <= end; ) {
+			final byte c = a[i+slen-1];
+			if ( c == last && a[i] == first && equals( a, i+1, b, j+1, slen-2 ) )
+				return i - m_offset;
+			i += skip[c & 0xff];
 		}
 		return -1;
 	}
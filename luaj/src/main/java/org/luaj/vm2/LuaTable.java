@@ -72,24 +72,43 @@ import java.util.Vector;
  */
 public class LuaTable extends LuaValue implements Metatable {
 	private static final int      MIN_HASH_CAPACITY = 2;
+	private static final int      SMALL_CAPACITY = 8;
 	private static final LuaString N = valueOf("n");
 	
 	/** the array values */
 	protected LuaValue[] array;
 	
-	/** the hash part */
+	/** the hash part as chains of {@link Slot}s, used only when the metatable has weak keys or values */
 	protected Slot[] hash;
 	
+	/** the keys of the open-addressing hash part, or null when {@link #hash} is in use. 
+	 * A key whose value is null is a removed entry, kept so that {@link #next(LuaValue)} can find it.
+	 * Up to {@link #SMALL_CAPACITY} keys are packed from the start and found by linear search, 
+	 * larger parts are probed linearly from the mixed hash code of the key. */
+	protected LuaValue[] hashKeys;
+
+	/** the values of the open-addressing hash part, parallel to {@link #hashKeys} */
+	protected LuaValue[] hashValues;
+	
 	/** the number of hash entries */
 	protected int hashEntries;
+
+	/** the number of non-null keys in {@link #hashKeys}, including removed entries */
+	private int hashUsed;
 	
 	/** metatable for this table, or null */
 	protected Metatable m_metatable;
+
+	/** Incremented when a removed hash position is reused for another key, the hash part is rebuilt, 
+	 * or the metatable changes, invalidating any {@link FieldCache} that refers to this table. */
+	int version;
 	
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
 		hash = NOBUCKETS;
+		hashKeys = NOVALS;
+		hashValues = NOVALS;
 	}
 	
 	/** 
@@ -174,8 +193,17 @@ public class LuaTable extends LuaValue implements Metatable {
 			nhash = MIN_HASH_CAPACITY;
 		// Size of both parts must be a power of two.
 		array = (narray>0? new LuaValue[1 << log2(narray)]: NOVALS);
-		hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
+		if ( isweak() ) {
+			hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
+			hashKeys = hashValues = null;
+		} else {
+			hash = NOBUCKETS;
+			hashKeys = (nhash>0? new LuaValue[nhash <= SMALL_CAPACITY? nhash: flatCapacity(nhash)]: NOVALS);
+			hashValues = (nhash>0? new LuaValue[hashKeys.length]: NOVALS);
+		}
 		hashEntries = 0;
+		hashUsed = 0;
+		++version;
 	}
 
 	/** Resize the table */
@@ -198,7 +226,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return length of the hash part, does not relate to count of objects in the table. 
 	 */
 	protected int getHashLength() {
-		return hash.length;
+		return hashKeys != null? hashKeys.length: hash.length;
 	}
 	
 	public LuaValue getmetatable() {
@@ -209,7 +237,9 @@ public class LuaTable extends LuaValue implements Metatable {
 		boolean hadWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
 		boolean hadWeakValues = m_metatable != null && m_metatable.useWeakValues();
 		m_metatable = metatableOf( metatable );
-		if ( ( hadWeakKeys != ( m_metatable != null && m_metatable.useWeakKeys() )) ||
+		++version;
+		if ( ( hashKeys != null ) == isweak() ||
+			 ( hadWeakKeys != ( m_metatable != null && m_metatable.useWeakKeys() )) ||
 			 ( hadWeakValues != ( m_metatable != null && m_metatable.useWeakValues() ))) {
 			// force a rehash
 			rehash( 0 );
@@ -248,6 +278,11 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	protected LuaValue hashget(LuaValue key) {
+		if ( hashKeys != null ) {
+			int i = flatIndex( key );
+			LuaValue v;
+			return i >= 0 && ( v = hashValues[i] ) != null ? v : NIL;
+		}
 		if ( hashEntries > 0 ) {
 			for ( Slot slot = hash[ hashSlot(key) ]; slot != null; slot = slot.rest() ) {
 				StrongSlot foundSlot;
@@ -259,6 +294,32 @@ public class LuaTable extends LuaValue implements Metatable {
 		return NIL;
 	}
 
+	/** Get the position of a key in the open-addressing hash part, for use by {@link FieldCache}.
+	 * The position stays valid until {@link #version} changes.
+	 * @return index into {@link #hashValues}, or -1 if the key is not present or the table is weak */
+	int hashindex(LuaValue key) {
+		if ( hashKeys == null )
+			return -1;
+		int i = flatIndex( key );
+		return i >= 0 && hashValues[i] != null ? i : -1;
+	}
+
+	/** Find the position of a key in {@link #hashKeys}, including removed entries, or -1 if absent. */
+	private int flatIndex(LuaValue key) {
+		final LuaValue[] keys = hashKeys;
+		final int n = keys.length;
+		if ( n <= SMALL_CAPACITY )
+			return smallIndex( keys, key );
+		final int mask = n - 1;
+		for ( int i = mix( key.hashCode() ) & mask; ; i = ( i + 1 ) & mask ) {
+			LuaValue k = keys[i];
+			if ( k == null )
+				return -1;
+			if ( k == key || key.raweq( k ) )
+				return i;
+		}
+	}
+
 	public void set( int key, LuaValue value ) {
 		if ( m_metatable==null || ! rawget(key).isnil() || ! settable(this,LuaInteger.valueOf(key),value) )
 			rawset(key, value);
@@ -394,6 +455,14 @@ public class LuaTable extends LuaValue implements Metatable {
 						break;
 					}
 				}
+				if ( hashKeys != null ) {
+					if ( hashKeys.length == 0 )
+						error( "invalid key to 'next' 1: " + key );
+					if ( ( i = flatIndex( key ) ) < 0 )
+						error( "invalid key to 'next' 2: " + key );
+					i += 1+array.length;
+					break;
+				}
 				if ( hash.length == 0 )
 					error( "invalid key to 'next' 1: " + key );
 				i = hashSlot( key );
@@ -426,6 +495,13 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		// check hash part
+		if ( hashKeys != null ) {
+			for ( i -= array.length; i < hashKeys.length; ++i ) {
+				if ( hashValues[i] != null )
+					return varargsOf( hashKeys[i], hashValues[i] );
+			}
+			return NIL;
+		}
 		for ( i -= array.length; i < hash.length; ++i ) {
 			Slot slot = hash[i];
 			while ( slot != null ) {
@@ -457,7 +533,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param value value to set
 	 */
 	public void hashset(LuaValue key, LuaValue value) {
-		if ( value.isnil() )
+		if ( hashKeys != null )
+			flatset(key, value);
+		else if ( value.isnil() )
 			hashRemove(key);
 		else {
 			int index = 0;
@@ -490,6 +568,111 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 	}
 
+	/** Find the position of a key in a packed hash part of at most {@link #SMALL_CAPACITY} keys */
+	private static int smallIndex(LuaValue[] keys, LuaValue key) {
+		for ( int i = 0; i < keys.length; ++i ) {
+			LuaValue k = keys[i];
+			if ( k == null )
+				break;
+			if ( k == key || key.raweq( k ) )
+				return i;
+		}
+		return -1;
+	}
+
+	/** Set or remove a value in the open-addressing hash part */
+	private void flatset(LuaValue key, LuaValue value) {
+		final LuaValue[] keys = hashKeys;
+		final int n = keys.length;
+		final int mask = n <= SMALL_CAPACITY ? -1 : n - 1;
+		int removed = -1;
+		for ( int i = flatStart( keys, key ), j = n; --j >= 0; i = ( i + 1 ) & mask ) {
+			LuaValue k = keys[i];
+			if ( k == null )
+				break;
+			if ( k == key || key.raweq( k ) ) {
+				if ( value.isnil() ) {
+					if ( hashValues[i] != null ) {
+						hashValues[i] = null;
+						--hashEntries;
+					}
+				} else {
+					if ( hashValues[i] == null )
+						++hashEntries;
+					hashValues[i] = value;
+				}
+				return;
+			}
+			if ( removed < 0 && hashValues[i] == null )
+				removed = i;
+		}
+		if ( value.isnil() )
+			return;
+		if ( removed >= 0 ) {
+			// reuse the position of a removed key; caches for that key must not see this value
+			keys[removed] = key;
+			hashValues[removed] = value;
+			++hashEntries;
+			++version;
+			return;
+		}
+		if ( hashUsed >= ( n <= SMALL_CAPACITY ? n : n - ( n >> 2 ) ) ) {
+			if ( n > 0 && n < SMALL_CAPACITY && !( key.isinttype() && key.toint() > 0 ) ) {
+				// small part with no removed keys: grow in place, positions are unchanged
+				int capacity = Math.min( SMALL_CAPACITY, Math.max( 4, n << 1 ) );
+				hashKeys = resize( keys, capacity );
+				hashValues = resize( hashValues, capacity );
+			} else if ( key.isinttype() && key.toint() > 0 ) {
+				// a rehash might make room in the array portion for this key.
+				rehash( key.toint() );
+				if ( arrayset(key.toint(), value) )
+					return;
+			} else {
+				rehash( -1 );
+			}
+			if ( hashKeys == null ) {
+				hashset( key, value );
+				return;
+			}
+		}
+		flatinsert( hashKeys, hashValues, key, value );
+		++hashEntries;
+		++hashUsed;
+	}
+
+	/** Insert a key known to be absent into an open-addressing hash part with room for it */
+	private static void flatinsert(LuaValue[] keys, LuaValue[] values, LuaValue key, LuaValue value) {
+		final int mask = keys.length <= SMALL_CAPACITY ? -1 : keys.length - 1;
+		int i = flatStart( keys, key );
+		while ( keys[i] != null )
+			i = ( i + 1 ) & mask;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	/** Position at which to start looking for a key in an open-addressing hash part */
+	private static int flatStart( LuaValue[] keys, LuaValue key ) {
+		return keys.length <= SMALL_CAPACITY ? 0 : mix( key.hashCode() ) & ( keys.length - 1 );
+	}
+
+	/** Spread the bits of a hash code for use with linear probing */
+	private static int mix( int h ) {
+		h *= 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+
+	/** Capacity of a probed open-addressing hash part holding n entries at no more than 3/4 load, 
+	 * always larger than {@link #SMALL_CAPACITY} */
+	private static int flatCapacity( int n ) {
+		int capacity = 1 << log2( n + ( n + 2 ) / 3 );
+		return capacity <= SMALL_CAPACITY ? SMALL_CAPACITY << 1 : capacity;
+	}
+
+	/** Return true if the hash part must use {@link Slot}s because the metatable has weak keys or values */
+	private boolean isweak() {
+		return m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() );
+	}
+
 	public static int hashpow2( int hashCode, int mask ) {
 		return hashCode & mask;
 	}
@@ -580,6 +763,16 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		// Count integer keys in hash part
+		if ( hashKeys != null ) {
+			for ( i = 0; i < hashKeys.length; ++i ) {
+				LuaValue k = hashKeys[i];
+				int n;
+				if ( k != null && hashValues[i] != null && k.isinttype() && ( n = k.toint() ) > 0 ) {
+					nums[log2(n)]++;
+					total++;
+				}
+			}
+		}
 		for ( i = 0; i < hash.length; ++i ) {
 			for ( Slot s = hash[i]; s != null; s = s.rest() ) {
 				int k;
@@ -639,9 +832,11 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * newKey < 0 next key will go in hash part
 	 */
 	private void rehash(int newKey) {
-		if ( m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() )) {
+		final boolean weak = isweak();
+		if ( weak ) {
 			// If this table has weak entries, hashEntries is just an upper bound.
-			hashEntries = countHashKeys();
+			if ( hashKeys == null )
+				hashEntries = countHashKeys();
 			if ( m_metatable.useWeakValues() ) {
 				dropWeakArrayValues();
 			}
@@ -668,8 +863,12 @@ public class LuaTable extends LuaValue implements Metatable {
 
 		final LuaValue[] oldArray = array;
 		final Slot[] oldHash = hash;
+		final LuaValue[] oldKeys = hashKeys;
+		final LuaValue[] oldValues = hashValues;
 		final LuaValue[] newArray;
 		final Slot[] newHash;
+		final LuaValue[] newKeys;
+		final LuaValue[] newValues;
 
 		// Copy existing array entries and compute number of moving entries.
 		int movingToArray = 0;
@@ -698,20 +897,31 @@ public class LuaTable extends LuaValue implements Metatable {
 		final int newCapacity;
 		final int newHashMask;
 
-		if (newHashSize > 0) {
+		if ( !weak ) {
+			newCapacity = newHashSize <= 0 ? 0 
+				: newHashSize <= SMALL_CAPACITY ? 1 << log2(newHashSize) 
+				: flatCapacity(newHashSize);
+			newHashMask = newCapacity - 1;
+			newHash = NOBUCKETS;
+			newKeys = newCapacity > 0 ? new LuaValue[ newCapacity ] : NOVALS;
+			newValues = newCapacity > 0 ? new LuaValue[ newCapacity ] : NOVALS;
+		} else if (newHashSize > 0) {
 			// round up to next power of 2.
 			newCapacity = ( newHashSize < MIN_HASH_CAPACITY )
 				? MIN_HASH_CAPACITY
 				: 1 << log2(newHashSize);
 			newHashMask = newCapacity - 1;
 			newHash = new Slot[ newCapacity ];
+			newKeys = newValues = null;
 		} else {
 			newCapacity = 0;
 			newHashMask = 0;
 			newHash = NOBUCKETS;
+			newKeys = newValues = null;
 		}
 
 		// Move hash buckets
+		int moved = 0;
 		for ( int i = 0; i < oldCapacity; ++i ) {
 			for ( Slot slot = oldHash[i]; slot != null; slot = slot.rest() ) {
 				int k;
@@ -719,6 +929,12 @@ public class LuaTable extends LuaValue implements Metatable {
 					StrongSlot entry = slot.first();
 					if (entry != null)
 						newArray[ k - 1 ] = entry.value();
+				} else if ( newKeys != null ) {
+					StrongSlot entry = slot.first();
+					if (entry != null) {
+						flatinsert( newKeys, newValues, entry.key(), entry.value() );
+						++moved;
+					}
 				} else {
 					int j = slot.keyindex( newHashMask );
 					newHash[j] = slot.relink( newHash[j] );
@@ -726,10 +942,36 @@ public class LuaTable extends LuaValue implements Metatable {
 			}
 		}
 
+		// Move open-addressing entries, dropping removed keys
+		for ( int i = 0, n = oldKeys != null ? oldKeys.length : 0; i < n; ++i ) {
+			LuaValue key = oldKeys[i], v = oldValues[i];
+			if ( v == null )
+				continue;
+			int k;
+			if ( key.isinttype() && ( k = key.toint() ) > 0 && k <= newArraySize ) {
+				newArray[ k - 1 ] = v;
+			} else if ( newKeys != null ) {
+				flatinsert( newKeys, newValues, key, v );
+				++moved;
+			} else {
+				Slot newEntry = m_metatable.entry( key, v );
+				if ( newEntry == null )
+					continue;
+				int slot = newEntry.keyindex( newHashMask );
+				newHash[ slot ] = ( newHash[slot] != null )
+					? newHash[slot].add( newEntry ) : newEntry;
+			}
+		}
+
 		// Move array values into hash portion
 		for ( int i = newArraySize; i < oldArray.length; ) {
 			LuaValue v;
 			if ( ( v = oldArray[ i++ ] ) != null ) {
+				if ( newKeys != null ) {
+					flatinsert( newKeys, newValues, valueOf(i), v );
+					++moved;
+					continue;
+				}
 				int slot = hashmod( LuaInteger.hashCode( i ), newHashMask );
 				Slot newEntry;
 				if ( m_metatable != null ) {
@@ -745,8 +987,14 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		hash = newHash;
+		hashKeys = newKeys;
+		hashValues = newValues;
 		array = newArray;
-		hashEntries -= movingToArray;
+		if ( newKeys != null )
+			hashEntries = hashUsed = moved;
+		else
+			hashEntries -= movingToArray;
+		++version;
 	}
 
 	public Slot entry( LuaValue key, LuaValue value ) {
@@ -777,7 +1025,11 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	// ----------------- sort support -----------------------------
 	//
-	// implemented heap sort from wikipedia
+	// natural merge sort after TimSort: ascending and strictly descending runs
+	// are found and extended to a minimum length by binary insertion, then merged
+	// with the run lengths kept balanced.  Before each merge, elements already in
+	// place at either end are skipped by galloping, so sorted or nearly sorted
+	// input costs about n comparisons.  The sort is stable.
 	//
 	// Only sorts the contiguous array part. 
 	//
@@ -793,59 +1045,264 @@ public class LuaTable extends LuaValue implements Metatable {
 		while ( n > 0 && array[n-1] == null )
 			--n;
 		if ( n > 1 ) 
-			heapSort(n, comparator);
+			new Sorter(array, comparator).sort(n);
 	}
 
-	private void heapSort(int count, LuaValue cmpfunc) {
-		heapify(count, cmpfunc);
-		for ( int end=count-1; end>0; ) {
-			swap(end, 0);
-			siftDown(0, --end, cmpfunc);
+	/** Merge sort of the array part, which leaves the array a permutation
+	 * of its elements even if the comparator throws or is inconsistent.
+	 */
+	private final class Sorter {
+		static final int MIN_MERGE = 32;
+		static final int GENERAL = 0;
+		static final int NUMBERS = 1;
+		static final int STRINGS = 2;
+
+		final LuaValue[] a;
+		final LuaValue cmpfunc;
+		int mode;
+		LuaValue[] tmp;
+		final int[] runbase = new int[49];
+		final int[] runlen = new int[49];
+		int nruns;
+
+		Sorter(LuaValue[] a, LuaValue cmpfunc) {
+			this.a = a;
+			this.cmpfunc = cmpfunc;
+		}
+
+		void sort(int n) {
+			mode = cmpfunc.isnil() && m_metatable == null? elementtype(n): GENERAL;
+			if (n < MIN_MERGE) {
+				binarysort(0, n, run(0, n));
+				return;
+			}
+			int minrun = minrun(n);
+			for (int lo = 0; lo < n; ) {
+				int len = run(lo, n);
+				if (len < minrun) {
+					int force = Math.min(n - lo, minrun);
+					binarysort(lo, lo + force, lo + len);
+					len = force;
+				}
+				runbase[nruns] = lo;
+				runlen[nruns++] = len;
+				collapse(false);
+				lo += len;
+			}
+			collapse(true);
 		}
-	}
 
-	private void heapify(int count, LuaValue cmpfunc) {
-		for ( int start=count/2-1; start>=0; --start )
-			siftDown(start, count - 1, cmpfunc);
-	}
+		/** Return NUMBERS or STRINGS if all elements are of that type, so they
+		 * can be compared without dispatch on the types, or GENERAL otherwise. */
+		int elementtype(int n) {
+			boolean numbers = true, strings = true;
+			for (int i = 0; i < n && (numbers || strings); i++) {
+				LuaValue v = a[i];
+				numbers &= v instanceof LuaNumber;
+				strings &= v instanceof LuaString;
+			}
+			return numbers? NUMBERS: strings? STRINGS: GENERAL;
+		}
+
+		/** Compare xs[i] < ys[j], where the arrays are the table array or the merge buffer. */
+		boolean lt(LuaValue[] xs, int i, LuaValue[] ys, int j) {
+			LuaValue x, y;
+			if (m_metatable == null) {
+				x = xs[i];
+				y = ys[j];
+			} else {
+				x = m_metatable.arrayget(xs, i);
+				y = m_metatable.arrayget(ys, j);
+			}
+			switch (mode) {
+			case NUMBERS: return x.todouble() < y.todouble();
+			case STRINGS: return ((LuaString) x).strcmp((LuaString) y) < 0;
+			}
+			if ( x == null || y == null )
+				return false;
+			if ( ! cmpfunc.isnil() ) {
+				return cmpfunc.call(x,y).toboolean();
+			} else {
+				return x.lt_b(y);
+			}
+		}
+
+		boolean lt(int i, int j) {
+			return lt(a, i, a, j);
+		}
+
+		int minrun(int n) {
+			int r = 0;
+			for (; n >= MIN_MERGE; n >>= 1)
+				r |= n & 1;
+			return n + r;
+		}
+
+		/** Return the length of the run starting at lo, reversing it if it is strictly descending. */
+		int run(int lo, int hi) {
+			int r = lo + 1;
+			if (r == hi)
+				return 1;
+			if (lt(r++, lo)) {
+				while (r < hi && lt(r, r - 1))
+					r++;
+				for (int i = lo, j = r - 1; i < j; i++, j--) {
+					LuaValue t = a[i];
+					a[i] = a[j];
+					a[j] = t;
+				}
+			} else {
+				while (r < hi && !lt(r, r - 1))
+					r++;
+			}
+			return r - lo;
+		}
+
+		/** Sort a[lo..hi) by binary insertion, given a[lo..start) is sorted. */
+		void binarysort(int lo, int hi, int start) {
+			for (int i = start; i < hi; i++) {
+				int l = lo, h = i;
+				while (l < h) {
+					int m = (l + h) >>> 1;
+					if (lt(i, m))
+						h = m;
+					else
+						l = m + 1;
+				}
+				LuaValue pivot = a[i];
+				System.arraycopy(a, l, a, l + 1, i - l);
+				a[l] = pivot;
+			}
+		}
 
-	private void siftDown(int start, int end, LuaValue cmpfunc) {
-		for ( int root=start; root*2+1 <= end; ) { 
-			int child = root*2+1; 
-			if (child < end && compare(child, child + 1, cmpfunc))
-				++child; 
-			if (compare(root, child, cmpfunc)) {
-				swap(root, child);
-				root = child;
-			} else
+		/** Merge runs until their lengths shrink geometrically down the stack, or all runs if force. */
+		void collapse(boolean force) {
+			while (nruns > 1) {
+				int k = nruns - 2;
+				if (force || k > 0 && runlen[k-1] <= runlen[k] + runlen[k+1]
+						|| k > 1 && runlen[k-2] <= runlen[k-1] + runlen[k]) {
+					if (k > 0 && runlen[k-1] < runlen[k+1])
+						k--;
+				} else if (runlen[k] > runlen[k+1]) {
+					return;
+				}
+				merge(k);
+			}
+		}
+
+		/** Merge runs k and k+1 on the stack. */
+		void merge(int k) {
+			int base1 = runbase[k], len1 = runlen[k];
+			int base2 = runbase[k+1], len2 = runlen[k+1];
+			runlen[k] = len1 + len2;
+			if (k == nruns - 3) {
+				runbase[k+1] = runbase[k+2];
+				runlen[k+1] = runlen[k+2];
+			}
+			nruns--;
+
+			// elements of run 1 not greater than the first of run 2 are in place
+			int skip = gallopright(base2, base1, len1);
+			base1 += skip;
+			len1 -= skip;
+			if (len1 == 0)
+				return;
+			// elements of run 2 not less than the last of run 1 are in place
+			len2 = gallopleft(base1 + len1 - 1, base2, len2);
+			if (len2 == 0)
 				return;
+			if (len1 <= len2)
+				mergelo(base1, len1, base2, len2);
+			else
+				mergehi(base1, len1, base2, len2);
+		}
+
+		/** Return the offset of the first element of a[base..base+len) greater than a[key],
+		 * searching from the left. */
+		int gallopright(int key, int base, int len) {
+			int last = 0, ofs = 1;
+			if (lt(key, base))
+				return 0;
+			while (ofs < len && !lt(key, base + ofs)) {
+				last = ofs;
+				ofs = (ofs << 1) + 1;
+				if (ofs <= 0)
+					ofs = len;
+			}
+			if (ofs > len)
+				ofs = len;
+			for (++last; last < ofs; ) {
+				int m = (last + ofs) >>> 1;
+				if (lt(key, base + m))
+					ofs = m;
+				else
+					last = m + 1;
+			}
+			return ofs;
+		}
+
+		/** Return the offset of the first element of a[base..base+len) not less than a[key],
+		 * searching from the right. */
+		int gallopleft(int key, int base, int len) {
+			int last = 0, ofs = 1;
+			if (lt(base + len - 1, key))
+				return len;
+			while (ofs < len && !lt(base + len - 1 - ofs, key)) {
+				last = ofs;
+				ofs = (ofs << 1) + 1;
+				if (ofs <= 0)
+					ofs = len;
+			}
+			if (ofs > len)
+				ofs = len;
+			int l = len - ofs, h = len - 1 - last;
+			while (l < h) {
+				int m = (l + h) >>> 1;
+				if (lt(base + m, key))
+					l = m + 1;
+				else
+					h = m;
+			}
+			return l;
 		}
-	}
 
-	private boolean compare(int i, int j, LuaValue cmpfunc) {
-		LuaValue a, b;
-		if (m_metatable == null) {
-			a = array[i];
-			b = array[j];
-		} else {
-			a = m_metatable.arrayget(array, i);
-			b = m_metatable.arrayget(array, j);
+		LuaValue[] tmp(int n) {
+			if (tmp == null || tmp.length < n)
+				tmp = new LuaValue[Math.max(n, Math.min(a.length >>> 1, n << 1))];
+			return tmp;
 		}
-		if ( a == null || b == null )
-			return false;
-		if ( ! cmpfunc.isnil() ) {
-			return cmpfunc.call(a,b).toboolean();
-		} else {
-			return a.lt_b(b);
+
+		/** Merge adjacent runs from the left, with the shorter first run in the buffer. */
+		void mergelo(int base1, int len1, int base2, int len2) {
+			LuaValue[] t = tmp(len1);
+			System.arraycopy(a, base1, t, 0, len1);
+			int i = 0, j = base2, k = base1, end = base2 + len2;
+			try {
+				while (i < len1 && j < end) {
+					LuaValue v = lt(a, j, t, i)? a[j++]: t[i++];
+					a[k++] = v;
+				}
+			} finally {
+				System.arraycopy(t, i, a, k, len1 - i);
+			}
+		}
+
+		/** Merge adjacent runs from the right, with the shorter second run in the buffer. */
+		void mergehi(int base1, int len1, int base2, int len2) {
+			LuaValue[] t = tmp(len2);
+			System.arraycopy(a, base2, t, 0, len2);
+			int i = base1 + len1 - 1, j = len2 - 1, k = base2 + len2 - 1;
+			try {
+				while (j >= 0 && i >= base1) {
+					LuaValue v = lt(t, j, a, i)? a[i--]: t[j--];
+					a[k--] = v;
+				}
+			} finally {
+				System.arraycopy(t, 0, a, k - j, j + 1);
+			}
 		}
 	}
-	
-	private void swap(int i, int j) {
-		LuaValue a = array[i];
-		array[i] = array[j];
-		array[j] = a;
-	}
-	
+
 	/** This may be deprecated in a future release.  
 	 * It is recommended to count via iteration over next() instead
 	 * @return count of keys in the table 
@@ -23,6 +23,9 @@ package org.luaj.vm2;
 
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
 
 /** 
  * Subclass of {@link LuaValue} that implements 
@@ -44,6 +47,17 @@ import java.lang.ref.WeakReference;
  * of C coroutine library.  However, because of the use of Java threads 
  * to manage call state, it is possible to yield from anywhere in luaj. 
  * <p>
+ * The Java threads are obtained from the {@link Executor} in 
+ * {@link Globals#executor}, which defaults to {@link #PLATFORM_THREADS}, 
+ * one new platform thread per coroutine.  On runtimes that support them, 
+ * {@link #virtualThreads()} supplies an executor which runs each coroutine 
+ * on a virtual thread instead, and a pooling executor may be used to reuse 
+ * platform threads across short-lived coroutines.  Control is handed between 
+ * the resuming and the resumed thread with {@link LockSupport}, 
+ * so no monitor is held while a coroutine runs or is suspended. 
+ * If the executor cannot start a coroutine, for example because it rejects the task, 
+ * the resume returns false and an error message, and the coroutine may be resumed again. 
+ * <p>
  * Each Java thread wakes up at regular intervals and checks a weak reference
  * to determine if it can ever be resumed.  If not, it throws 
  * {@link OrphanedThread} which is an {@link java.lang.Error}. 
@@ -81,6 +95,25 @@ public class LuaThread extends LuaValue {
 	 * collection is run.  This can be changed by Java startup code if desired.
 	 */
 	public static long thread_orphan_check_interval = 5000;
+
+	/** Executor which starts a new platform thread for each coroutine. 
+	 * This is the default value of {@link Globals#executor}. */
+	public static final Executor PLATFORM_THREADS = new Executor() {
+		public void execute(Runnable command) {
+			new Thread(command, "Coroutine-"+(++coroutine_count)).start();
+		}
+	};
+
+	/** Get an executor which starts a new virtual thread for each coroutine.
+	 * @return the executor, or null if the Java runtime does not provide virtual threads. 
+	 */
+	public static Executor virtualThreads() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
 	
 	public static final int STATUS_INITIAL       = 0;
 	public static final int STATUS_SUSPENDED     = 1;
@@ -172,6 +205,12 @@ public class LuaThread extends LuaValue {
 		Varargs result = LuaValue.NONE;
 		String error = null;
 
+		/** Java thread waiting in {@link #lua_resume(LuaThread, Varargs)} for this coroutine to yield or die. */
+		private volatile Thread resumer;
+
+		/** Java thread executing the coroutine function. */
+		private volatile Thread carrier;
+
 		/** Hook function control state used by debug lib. */
 		public LuaValue hookfunc;
 
@@ -183,7 +222,9 @@ public class LuaThread extends LuaValue {
 		public int lastline;
 		public int bytecodes;
 		
-		public int status = LuaThread.STATUS_INITIAL;
+		/** Current status.  Writes to this field publish {@link #args}, {@link #result} 
+		 * and {@link #error} to the thread on the other side of a resume or yield. */
+		public volatile int status = LuaThread.STATUS_INITIAL;
 
 		State(Globals globals, LuaThread lua_thread, LuaValue function) {
 			this.globals = globals;
@@ -191,7 +232,9 @@ public class LuaThread extends LuaValue {
 			this.function = function;
 		}
 		
-		public synchronized void run() {
+		public void run() {
+			this.carrier = Thread.currentThread();
+			LuaClosure.poolStacks(false);
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
@@ -199,31 +242,43 @@ public class LuaThread extends LuaValue {
 			} catch (Throwable t) {
 				this.error = t.getMessage();
 			} finally {
+				LuaClosure.poolStacks(true);
 				this.status = LuaThread.STATUS_DEAD;
-				this.notify();
+				LockSupport.unpark(this.resumer);
 			}
 		}
 
-		public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
+		public Varargs lua_resume(LuaThread new_thread, Varargs args) {
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
 				this.args = args;
+				this.resumer = Thread.currentThread();
+				if (previous_thread != null)
+					previous_thread.state.status = STATUS_NORMAL;
 				if (this.status == STATUS_INITIAL) {
 					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					Executor executor = globals.executor;
+					try {
+						(executor != null? executor: PLATFORM_THREADS).execute(this);
+					} catch (RuntimeException e) {
+						return notStarted(e);
+					} catch (OutOfMemoryError e) {
+						return notStarted(e);
+					}
 				} else {
-					this.notify();
+					this.status = STATUS_RUNNING;
+					LockSupport.unpark(this.carrier);
+				}
+				int s;
+				while ((s = this.status) == STATUS_RUNNING || s == STATUS_NORMAL) {
+					LockSupport.park(this);
+					if (Thread.interrupted())
+						throw new OrphanedThread();
 				}
-				if (previous_thread != null)
-					previous_thread.state.status = STATUS_NORMAL;
-				this.status = STATUS_RUNNING;
-				this.wait();
 				return (this.error != null? 
 					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
 					LuaValue.varargsOf(LuaValue.TRUE, this.result));
-			} catch (InterruptedException ie) {
-				throw new OrphanedThread();
 			} finally {
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
@@ -234,22 +289,27 @@ public class LuaThread extends LuaValue {
 			}
 		}
 
-		public synchronized Varargs lua_yield(Varargs args) {
+		/** Leave a coroutine the executor could not start in its initial state, 
+		 * so that it can be resumed again, and report the failure as an error. */
+		private Varargs notStarted(Throwable t) {
+			this.status = STATUS_INITIAL;
+			return LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf("cannot start coroutine: "+t));
+		}
+
+		public Varargs lua_yield(Varargs args) {
 			try {
 				this.result = args;
 				this.status = STATUS_SUSPENDED;
-				this.notify();
-				do {
-					this.wait(thread_orphan_check_interval);
-					if (this.lua_thread.get() == null) {
+				LockSupport.unpark(this.resumer);
+				final long interval = thread_orphan_check_interval * 1000000L;
+				while (this.status == STATUS_SUSPENDED) {
+					LockSupport.parkNanos(this, interval);
+					if (Thread.interrupted() || this.lua_thread.get() == null) {
 						this.status = STATUS_DEAD;
 						throw new OrphanedThread();
 					}
-				} while (this.status == STATUS_SUSPENDED);
+				}
 				return this.args;
-			} catch (InterruptedException ie) {
-				this.status = STATUS_DEAD;
-				throw new OrphanedThread();
 			} finally {
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
@@ -100,6 +100,13 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* inline caches for lookups with constant string keys, indexed by pc, created on first use */
+	FieldCache[] fieldcaches;
+	/* tiered execution: loader to notify when hot, count of calls and loop iterations left until then,
+	 * and the compiled code that replaces the interpreter once it is ready */
+	public Tier tier;
+	public int hotcount;
+	public volatile Compiled compiled;
 	private static final Upvaldesc[] NOUPVALUES = {};
 	private static final Prototype[] NOSUBPROTOS = {};
 
@@ -135,6 +142,24 @@ public class Prototype {
 	  return null;  /* not found */
 	}
 	
+	/** Receiver of prototypes that have become hot under a tiered loader.
+	 * @see org.luaj.vm2.luajc.TieredLoader
+	 */
+	public interface Tier {
+		/** Called by the interpreter when the {@link Prototype#hotcount} of p reaches zero. */
+		void promote(Prototype p);
+	}
+
+	/** Compiled code for a prototype, used in place of the interpreter by its closures. */
+	public interface Compiled {
+		/** Create a function equivalent to a closure of the prototype with these upvalues.
+		 * @param upvalues the upvalues of the closure, shared with the returned function
+		 * @param globals the globals of the closure, given to the closures the function creates
+		 * @return the compiled function
+		 */
+		LuaFunction bind(UpValue[] upvalues, LuaValue globals);
+	}
+
 	public String shortsource() {
 		String name = source.tojstring();
         if ( name.startsWith("@") || name.startsWith("=") )
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded pool of interned {@link LuaString}s shared by all threads.
+ * <p>
+ * When a pool is installed as {@link LuaString#s_pool}, strings created through
+ * {@link LuaString#valueOf(byte[], int, int)} and {@link LuaString#valueUsing(byte[], int, int)}
+ * that are no longer than {@link #maxLength()} are looked up in the pool first,
+ * so that equal keys resolve to the same instance and table lookups succeed on
+ * the identity comparison.  Without a pool, only a small direct-mapped cache
+ * of recent short strings is used.
+ * <p>
+ * The pool is a set-associative cache of {@link #WAYS} entries per set.
+ * A hit moves the entry one place toward the front of its set, and a miss inserts
+ * the new string at the front, evicting the least recently used entry of the set.
+ * Entries are plain references to immutable values, so no locking is needed:
+ * a race between threads can at worst lose an entry, which only costs a later miss.
+ * <p>
+ * Hit and miss counts are kept in striped counters so that the capacity can be
+ * sized per deployment from {@link #hitRate()}.
+ * <p>
+ * A pool of the given capacity can be installed at startup by setting the
+ * system property <code>"luaj.stringpool.capacity"</code>, or in code:
+ * <pre> {@code
+ * LuaString.s_pool = new StringPool(16384, 64);
+ * } </pre>
+ *
+ * @see LuaString
+ */
+public final class StringPool {
+
+	/** Number of entries in each set */
+	public static final int WAYS = 4;
+
+	/** Default maximum length of a string held in the pool */
+	public static final int DEFAULT_MAX_LENGTH = 64;
+
+	/** Number of counter stripes, a power of two */
+	private static final int STRIPES = 16;
+
+	/** Distance between stripes in the counter array, to keep them on separate cache lines */
+	private static final int PAD = 8;
+
+	private final LuaString[] entries;
+	private final int setMask;
+	private final int maxLength;
+	private final AtomicLongArray counters = new AtomicLongArray(STRIPES * PAD);
+
+	/** Construct a pool holding strings of up to {@link #DEFAULT_MAX_LENGTH} bytes.
+	 * @param capacity maximum number of strings held, rounded up to a power of two
+	 */
+	public StringPool(int capacity) {
+		this(capacity, DEFAULT_MAX_LENGTH);
+	}
+
+	/** Construct a pool.
+	 * @param capacity maximum number of strings held, rounded up to a power of two
+	 * @param maxLength maximum length in bytes of a string held in the pool
+	 */
+	public StringPool(int capacity, int maxLength) {
+		int sets = 1;
+		while (sets * WAYS < capacity && sets < 1 << 24)
+			sets <<= 1;
+		this.entries = new LuaString[sets * WAYS];
+		this.setMask = sets - 1;
+		this.maxLength = maxLength;
+	}
+
+	/** @return maximum number of strings held in the pool */
+	public int capacity() {
+		return entries.length;
+	}
+
+	/** @return maximum length in bytes of a string held in the pool */
+	public int maxLength() {
+		return maxLength;
+	}
+
+	/** @return number of lookups that found a string in the pool */
+	public long hits() {
+		long n = 0;
+		for (int i = 0; i < STRIPES; i++)
+			n += counters.get(i * PAD);
+		return n;
+	}
+
+	/** @return number of lookups that did not find a string in the pool */
+	public long misses() {
+		long n = 0;
+		for (int i = 0; i < STRIPES; i++)
+			n += counters.get(i * PAD + 1);
+		return n;
+	}
+
+	/** @return fraction of lookups that found a string in the pool, or 0 if there were none */
+	public double hitRate() {
+		long h = hits(), m = misses();
+		return h + m > 0? (double) h / (h + m): 0.;
+	}
+
+	/** Reset the hit and miss counts to zero. */
+	public void resetStatistics() {
+		for (int i = 0; i < counters.length(); i++)
+			counters.set(i, 0);
+	}
+
+	/** Remove all strings from the pool. */
+	public void clear() {
+		for (int i = 0; i < entries.length; i++)
+			entries[i] = null;
+	}
+
+	/** Return the pooled string equal to s, adding s to the pool if there is none.
+	 * @param s the string to intern
+	 * @return an equal string from the pool, or s
+	 */
+	public LuaString intern(LuaString s) {
+		if (s.m_length > maxLength)
+			return s;
+		LuaString t = get(s.m_bytes, s.m_offset, s.m_length, s.hashCode());
+		if (t != null)
+			return t;
+		put(s);
+		return s;
+	}
+
+	/** Look up a string by its bytes.
+	 * @return the pooled string, or null if none matches */
+	LuaString get(byte[] bytes, int off, int len, int hash) {
+		final int set = set(hash);
+		final int base = set * WAYS;
+		final LuaString[] e = entries;
+		for (int i = 0; i < WAYS; i++) {
+			final LuaString t = e[base + i];
+			if (t != null && t.hashCode() == hash && t.byteseq(bytes, off, len)) {
+				if (i > 0) {
+					e[base + i] = e[base + i - 1];
+					e[base + i - 1] = t;
+				}
+				counters.incrementAndGet((set & (STRIPES - 1)) * PAD);
+				return t;
+			}
+		}
+		counters.incrementAndGet((set & (STRIPES - 1)) * PAD + 1);
+		return null;
+	}
+
+	/** Add a string not already in the pool at the front of its set. */
+	void put(LuaString s) {
+		final int base = set(s.hashCode()) * WAYS;
+		final LuaString[] e = entries;
+		for (int i = WAYS - 1; i > 0; i--)
+			e[base + i] = e[base + i - 1];
+		e[base] = s;
+	}
+
+	private int set(int hash) {
+		hash *= 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & setMask;
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Directory of cache files named by a key and a suffix, 
+ * with a limit on the total size of the files.
+ * <p>
+ * Files are written under a temporary name and renamed into place, 
+ * so that processes sharing a directory never read a partial file.
+ * Reading a file marks it as recently used, and once the total size of the files 
+ * with the suffix exceeds the limit, the least recently used files are deleted.
+ * Files with other suffixes are left alone, so several caches may share a directory.
+ * <p>
+ * Used by {@link CachingCompiler} for binary chunks 
+ * and by {@link org.luaj.vm2.luajc.ClassCache} for generated classes.
+ */
+public class CacheDirectory {
+
+	private final File directory;
+	private final String suffix;
+	private final long maxBytes;
+
+	/** Construct a cache in a directory, which is created when the first file is written.
+	 * @param directory the directory in which to keep cache files
+	 * @param suffix the file name suffix of cache files
+	 * @param maxBytes the total size of cache files above which files are evicted
+	 */
+	public CacheDirectory(File directory, String suffix, long maxBytes) {
+		this.directory = directory;
+		this.suffix = suffix;
+		this.maxBytes = maxBytes;
+	}
+
+	/** Read the contents of a cache file, and mark it as recently used.
+	 * @param key the key of the file
+	 * @return the contents, or null if there is no such file
+	 * @throws IOException if the file exists but cannot be read
+	 */
+	public byte[] get(String key) throws IOException {
+		File file = file(key);
+		if (!file.isFile())
+			return null;
+		byte[] contents;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			long n = file.length();
+			if (n > Integer.MAX_VALUE)
+				throw new IOException("cache file too large: "+file);
+			contents = new byte[(int) n];
+			in.readFully(contents);
+		} finally {
+			in.close();
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return contents;
+	}
+
+	/** Write a cache file, replacing any file with the same key,
+	 * then evict the least recently used files if the cache is too large.
+	 * @param key the key of the file
+	 * @param contents the contents to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void put(String key, byte[] contents) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create "+directory);
+		File file = file(key);
+		File temp = File.createTempFile("cache", ".tmp", directory);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(contents);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("cannot write "+file);
+			}
+		} finally {
+			temp.delete();
+		}
+		evict();
+	}
+
+	/** Delete a cache file, for example one whose contents turned out to be invalid.
+	 * @param key the key of the file
+	 */
+	public void remove(String key) {
+		file(key).delete();
+	}
+
+	private File file(String key) {
+		return new File(directory, key + suffix);
+	}
+
+	/** Delete the least recently used cache files until their total size is within the limit. */
+	private void evict() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(suffix);
+			}
+		});
+		if (files == null)
+			return;
+		long total = 0;
+		final long[] modified = new long[files.length];
+		for (int i = 0; i < files.length; i++)
+			total += files[i].length();
+		if (total <= maxBytes)
+			return;
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			order[i] = Integer.valueOf(i);
+			modified[i] = files[i].lastModified();
+		}
+		Arrays.sort(order, new Comparator() {
+			public int compare(Object a, Object b) {
+				long x = modified[((Integer) a).intValue()], y = modified[((Integer) b).intValue()];
+				return x < y? -1: x > y? 1: 0;
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File f = files[order[i].intValue()];
+			long n = f.length();
+			if (f.delete())
+				total -= n;
+		}
+	}
+
+	/** Convert a digest to the hexadecimal string used as a key.
+	 * @param bytes the digest
+	 * @return the lower case hexadecimal digits of the digest
+	 */
+	public static String hex(byte[] bytes) {
+		StringBuffer sb = new StringBuffer(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
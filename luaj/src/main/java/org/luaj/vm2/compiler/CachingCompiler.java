@@ -0,0 +1,189 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Prototype;
+
+/**
+ * {@link Globals.Compiler} that keeps the binary chunks of compiled scripts in a directory,
+ * so that unchanged scripts are not compiled again on the next start.
+ * <p>
+ * Each source is identified by a SHA-1 digest of its chunk name and bytes.
+ * On a hit the binary chunk is loaded with {@link LoadState#undump(ByteBuffer, String)},
+ * on a miss the source is compiled by the wrapped compiler and the result is written
+ * with {@link DumpState#dump(Prototype, java.io.OutputStream, boolean)},
+ * keeping debug information so that error messages are unchanged.
+ * <p>
+ * A cache file records the digest and length of the chunk it holds, and is discarded
+ * if these do not match or the chunk cannot be loaded.  Files are kept in a 
+ * {@link CacheDirectory}, which writes them under a temporary name and renames them,
+ * so concurrent writers never expose partial files, and deletes the least recently used
+ * files when their total size exceeds the limit.  Any failure reading or writing the 
+ * cache falls back to compiling.
+ * <p>
+ * To wrap the compiler already installed in a {@link Globals}:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * CachingCompiler.install(globals, new File(context.getCacheDir(), "lua"), 4 << 20);
+ * } </pre>
+ *
+ * @see Globals#compiler
+ * @see LuaC
+ * @see DumpState
+ * @see LoadState
+ */
+public class CachingCompiler implements Globals.Compiler {
+
+	/** File name suffix of cache files */
+	public static final String SUFFIX = ".luac";
+
+	/** Signature at the start of each cache file */
+	private static final byte[] SIGNATURE = { 'L', 'j', 'P', 'C' };
+
+	/** Version of the cache file layout, changed whenever the binary chunk format changes */
+	private static final int FORMAT = 1;
+
+	private static final int DIGEST_LENGTH = 20;
+
+	private final Globals.Compiler compiler;
+	private final CacheDirectory cache;
+
+	/** Wrap the compiler installed in globals with a cache.
+	 * @param globals the Globals whose compiler is to be wrapped.
+	 * @param directory the directory in which to keep cache files, created if necessary.
+	 * @param maxBytes the total size of cache files above which files are evicted.
+	 */
+	public static void install(Globals globals, File directory, long maxBytes) {
+		if (globals.compiler == null)
+			LuaC.install(globals);
+		globals.compiler = new CachingCompiler(globals.compiler, directory, maxBytes);
+	}
+
+	/** Construct a caching compiler.
+	 * @param compiler the compiler to use on a cache miss.
+	 * @param directory the directory in which to keep cache files, created if necessary.
+	 * @param maxBytes the total size of cache files above which files are evicted.
+	 */
+	public CachingCompiler(Globals.Compiler compiler, File directory, long maxBytes) {
+		this.compiler = compiler;
+		this.cache = new CacheDirectory(directory, SUFFIX, maxBytes);
+	}
+
+	public Prototype compile(InputStream stream, String chunkname) throws IOException {
+		byte[] source = readAll(stream);
+		byte[] digest = digest(chunkname, source);
+		if (digest == null)
+			return compiler.compile(new ByteArrayInputStream(source), chunkname);
+		String key = CacheDirectory.hex(digest);
+		Prototype p = read(key, digest, chunkname);
+		if (p != null)
+			return p;
+		p = compiler.compile(new ByteArrayInputStream(source), chunkname);
+		write(key, digest, p);
+		return p;
+	}
+
+	/** Load the prototype from a cache file, or return null if it is missing or invalid. */
+	private Prototype read(String key, byte[] digest, String chunkname) {
+		try {
+			byte[] contents = cache.get(key);
+			if (contents == null)
+				return null;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+			byte[] header = new byte[SIGNATURE.length + 1 + DIGEST_LENGTH];
+			in.readFully(header);
+			for (int i = 0; i < SIGNATURE.length; i++)
+				if (header[i] != SIGNATURE[i])
+					throw new IOException("bad signature");
+			if (header[SIGNATURE.length] != FORMAT)
+				throw new IOException("bad format");
+			for (int i = 0; i < DIGEST_LENGTH; i++)
+				if (header[SIGNATURE.length + 1 + i] != digest[i])
+					throw new IOException("bad digest");
+			int n = in.readInt();
+			if (n != contents.length - header.length - 4)
+				throw new IOException("bad length");
+			Prototype p = LoadState.undump(ByteBuffer.wrap(contents, header.length + 4, n), chunkname);
+			if (p == null)
+				throw new IOException("not a binary chunk");
+			return p;
+		} catch (Exception e) {
+			cache.remove(key);
+			return null;
+		}
+	}
+
+	/** Write the prototype to a cache file, which evicts old files if the cache is too large. */
+	private void write(String key, byte[] digest, Prototype p) {
+		try {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			DumpState.dump(p, chunk, false);
+			ByteArrayOutputStream contents = new ByteArrayOutputStream(SIGNATURE.length + 1 + DIGEST_LENGTH + 4 + chunk.size());
+			DataOutputStream out = new DataOutputStream(contents);
+			out.write(SIGNATURE);
+			out.write(FORMAT);
+			out.write(digest);
+			out.writeInt(chunk.size());
+			chunk.writeTo(out);
+			out.flush();
+			cache.put(key, contents.toByteArray());
+		} catch (Exception e) {
+			// the cache is only an optimization
+		}
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n; (n = stream.read(buf)) > 0; )
+			out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+
+	private static byte[] digest(String chunkname, byte[] source) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(chunkname.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update((byte) LoadState.LUAC_VERSION);
+			md.update(source);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
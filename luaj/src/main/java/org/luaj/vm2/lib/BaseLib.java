@@ -27,6 +27,8 @@ import java.io.InputStream;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -234,6 +236,39 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 					globals.debuglib.onReturn();
 			}
 		}
+		public void invoke(Varargs args, LuaValue[] stack, int offset, int n) {
+			LuaValue func = args.checkvalue(1);
+			if (n <= 0) {
+				invoke(args);
+				return;
+			}
+			if (globals != null && globals.debuglib != null)
+				globals.debuglib.onCall(this);
+			try {
+				if (func instanceof LuaFunction) {
+					((LuaFunction) func).invoke(args.subargs(2), stack, offset+1, n-1);
+				} else {
+					Varargs v = func.invoke(args.subargs(2));
+					for (int i = 1; i < n; i++)
+						stack[offset+i] = v.arg(i);
+				}
+				stack[offset] = TRUE;
+			} catch ( LuaError le ) {
+				final LuaValue m = le.getMessageObject();
+				failed(stack, offset, n, m!=null? m: NIL);
+			} catch ( Exception e ) {
+				final String m = e.getMessage();
+				failed(stack, offset, n, valueOf(m!=null? m: e.toString()));
+			} finally {
+				if (globals != null && globals.debuglib != null)
+					globals.debuglib.onReturn();
+			}
+		}
+		private void failed(LuaValue[] stack, int offset, int n, LuaValue m) {
+			stack[offset] = FALSE;
+			for (int i = 1; i < n; i++)
+				stack[offset+i] = i == 1? m: NIL;
+		}
 	}
 
 	// "print", // (...) -> void
@@ -424,6 +459,13 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		public Varargs invoke(Varargs args) {
 			return args.checktable(1).inext(args.arg(2));
 		}
+		public void invoke(Varargs args, LuaValue[] stack, int offset, int n) {
+			LuaTable t = args.checktable(1);
+			int k = args.arg(2).checkint() + 1;
+			LuaValue v = t.rawget(k);
+			for (int i = 0; i < n; i++)
+				stack[offset+i] = v.isnil() || i > 1? NIL: i == 0? LuaInteger.valueOf(k): v;
+		}
 	}
 	
 	/**
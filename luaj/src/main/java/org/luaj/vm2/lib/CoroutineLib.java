@@ -21,6 +21,8 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import java.util.concurrent.Executor;
+
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -55,6 +57,12 @@ import org.luaj.vm2.Varargs;
  * System.out.println( globals.get("coroutine").get("running").call() );
  * } </pre>
  * <p>
+ * The Java threads used by coroutines can be supplied by constructing the library 
+ * with an {@link Executor}, for example to run each coroutine on a virtual thread:
+ * <pre> {@code
+ * globals.load(new CoroutineLib(LuaThread.virtualThreads()));
+ * } </pre>
+ * <p>
  * @see LibFunction
  * @see org.luaj.vm2.lib.jse.JsePlatform
  * @see org.luaj.vm2.lib.jme.JmePlatform
@@ -65,6 +73,23 @@ public class CoroutineLib extends TwoArgFunction {
 	static int coroutine_count = 0;
 
 	Globals globals;
+
+	final Executor executor;
+
+	/** Construct a coroutine library which runs coroutines on the executor 
+	 * already installed in the {@link Globals}. */
+	public CoroutineLib() {
+		this(null);
+	}
+
+	/** Construct a coroutine library which runs coroutines on the supplied executor.
+	 * @param executor the Executor to install into {@link Globals#executor}, or null to keep the current one.
+	 * @see LuaThread#PLATFORM_THREADS
+	 * @see LuaThread#virtualThreads()
+	 */
+	public CoroutineLib(Executor executor) {
+		this.executor = executor;
+	}
 	
 	/** Perform one-time initialization on the library by creating a table
 	 * containing the library functions, adding that table to the supplied environment,
@@ -74,6 +99,7 @@ public class CoroutineLib extends TwoArgFunction {
 	 */
 	public LuaValue call(LuaValue modname, LuaValue env) {
 		globals = env.checkglobals();
+		if (executor != null) globals.executor = executor;
 		LuaTable coroutine = new LuaTable();
 		coroutine.set("create", new create());
 		coroutine.set("resume", new resume());
@@ -94,6 +94,10 @@ public class IoLib extends TwoArgFunction {
 		abstract public int read() throws IOException, EOFException;
 		// return number of bytes read if positive, false if eof, throw IOException on other exception
 		abstract public int read(byte[] bytes, int offset, int length) throws IOException;
+		// read to the end of line or file, or NIL if at eof; may be overridden to read in bulk
+		public LuaValue readuntil(boolean lineonly) throws IOException {
+			return freaduntil(this, lineonly);
+		}
 		
 		// delegate method access to file methods table
 		public LuaValue get( LuaValue key ) {
@@ -156,6 +160,20 @@ public class IoLib extends TwoArgFunction {
 	 */
 	abstract protected File openFile( String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode ) throws IOException;
 
+	/**
+	 * Open a file read-only for mode {@code "rm"}, mapping it into memory where the platform allows.
+	 * <p>
+	 * The default implementation opens the file with {@link #openFile(String, boolean, boolean, boolean, boolean)}
+	 * in read mode.
+	 * @param filename
+	 * @param binaryMode true if opening in binary mode
+	 * @return File object if successful
+	 * @throws IOException if could not be opened
+	 */
+	protected File openMappedFile( String filename, boolean binaryMode ) throws IOException {
+		return openFile( filename, true, false, false, binaryMode );
+	}
+
 	/**
 	 * Open a temporary file.
 	 * @return File object if successful
@@ -546,6 +564,8 @@ public class IoLib extends TwoArgFunction {
 		boolean isappend = mode.startsWith("a");
 		boolean isupdate = mode.indexOf('+') > 0;
 		boolean isbinary = mode.endsWith("b");
+		if ( isreadmode && ! isupdate && mode.indexOf('m') > 0 )
+			return openMappedFile( filename, isbinary );
 		return openFile( filename, isreadmode, isappend, isupdate, isbinary );
 	}
 
@@ -583,14 +603,14 @@ public class IoLib extends TwoArgFunction {
 			(LuaValue) LuaString.valueUsing(baos.toByteArray());
 	}
 	public static LuaValue freadline(File f) throws IOException {
-		return freaduntil(f,true);
+		return f.readuntil(true);
 	}
 	public static LuaValue freadall(File f) throws IOException {
 		int n = f.remaining();
 		if ( n >= 0 ) {
 			return freadbytes(f, n);
 		} else {
-			return freaduntil(f,false);
+			return f.readuntil(false);
 		}
 	}
 	public static LuaValue freadnumber(File f) throws IOException {
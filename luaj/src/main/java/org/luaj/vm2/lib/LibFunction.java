@@ -21,9 +21,12 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.Varargs;
 
 /**
@@ -195,6 +198,29 @@ abstract public class LibFunction extends LuaFunction {
 		return new LuaValue[] { v };
 	}
 
+	/** Java code generation utility to create a closure of an inner prototype from code compiled 
+	 * for a prototype on its own, which is interpreted until the inner prototype is compiled */
+	protected static LuaValue newclosure(UpValue[] upvalues, Prototype p, LuaValue env) {
+		LuaClosure c = new LuaClosure(p, env);
+		c.upValues = upvalues;
+		return c;
+	}
+
+	/** Java code generation utility to convert the limit of a numeric for loop with an int index and step.
+	 * @return the limit as an int the index can be compared with, or Integer.MAX_VALUE
+	 * (Integer.MIN_VALUE for a negative step) if the loop must run with LuaValue arithmetic instead */
+	protected static int forlimit(LuaValue limit, int step) {
+		int fail = step > 0? Integer.MAX_VALUE: Integer.MIN_VALUE;
+		if ( limit.type() != TNUMBER )
+			return fail;
+		double d = limit.todouble();
+		d = step > 0? Math.floor(d): Math.ceil(d);
+		if ( step > 0? !(d >= Integer.MIN_VALUE && d <= (double) Integer.MAX_VALUE - step):
+				!(d <= Integer.MAX_VALUE && d >= (double) Integer.MIN_VALUE - step) )
+			return fail;
+		return (int) d;
+	}
+
 	public LuaValue call() {
 		return argerror(1,"value");
 	}
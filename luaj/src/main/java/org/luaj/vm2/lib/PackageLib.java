@@ -21,7 +21,13 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import java.io.BufferedReader;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaFunction;
@@ -48,6 +54,9 @@ import org.luaj.vm2.Varargs;
  * <ul>
  * <li><code>"luaj.package.path"</code> Initial value for <code>"package.path"</code>.  Default value is <code>"?.lua"</code>
  * </ul>
+ * <p>
+ * Modules listed in a {@link #PRECOMPILED_MODULES} resource on the classpath, as written by the
+ * luajc step of the Gradle build, are loaded as Java classes before any lua file is searched for.
  * 
  * <h3>Loading</h3>
  * Typically, this library is included as part of a call to either
@@ -95,6 +104,31 @@ public class PackageLib extends TwoArgFunction {
 		DEFAULT_LUA_PATH = path;
 	}
 
+	/** Name of the classpath resource listing the modules compiled ahead of time by luajc, one per line.
+	 * Each listed module is searched for as a Java class before the lua path is searched. */
+	public static final String PRECOMPILED_MODULES = "luajc.modules";
+
+	/** Names of all modules listed in every {@link #PRECOMPILED_MODULES} resource on the classpath. */
+	private static final Set PRECOMPILED = new HashSet();
+	static {
+		try {
+			ClassLoader cl = PackageLib.class.getClassLoader();
+			Enumeration e = cl != null? cl.getResources(PRECOMPILED_MODULES): ClassLoader.getSystemResources(PRECOMPILED_MODULES);
+			while ( e.hasMoreElements() ) {
+				BufferedReader r = new BufferedReader(new InputStreamReader(((URL) e.nextElement()).openStream(), "UTF-8"));
+				try {
+					for ( String line; (line = r.readLine()) != null; )
+						if ( line.trim().length() > 0 )
+							PRECOMPILED.add(line.trim());
+				} finally {
+					r.close();
+				}
+			}
+		} catch (Exception e) {
+			System.out.println(e.toString());
+		}
+	}
+
 	static final LuaString _LOADED      = valueOf("loaded");
 	private static final LuaString _LOADLIB     = valueOf("loadlib");
 	static final LuaString _PRELOAD     = valueOf("preload");
@@ -117,6 +151,9 @@ public class PackageLib extends TwoArgFunction {
 	/** Loader that loads as a Java class.  Class must have public constructor and be a LuaValue. */
 	public java_searcher java_searcher;
 
+	/** Loader that loads a module listed in {@link #PRECOMPILED_MODULES} as a Java class, or null if none are listed */
+	public precompiled_searcher precompiled_searcher;
+
 	private static final LuaString _SENTINEL   = valueOf("\u0001");
 	
 	private static final String FILE_SEP = System.getProperty("file.separator");
@@ -143,6 +180,8 @@ public class PackageLib extends TwoArgFunction {
 		searchers.set(1, preload_searcher = new preload_searcher());
 		searchers.set(2, lua_searcher     = new lua_searcher());
 		searchers.set(3, java_searcher    = new java_searcher());
+		if ( !PRECOMPILED.isEmpty() )
+			searchers.insert(2, precompiled_searcher = new precompiled_searcher());
 		package_.set(_SEARCHERS, searchers);
 		package_.get(_LOADED).set("package", package_);
 		env.set("package", package_);
@@ -183,6 +222,9 @@ public class PackageLib extends TwoArgFunction {
 	 * (which should be a function) is the loader. Otherwise require searches for a Lua loader using
 	 * the path stored in package.path. If that also fails, it searches for a Java loader using
 	 * the classpath, using the public default constructor, and casting the instance to LuaFunction.
+	 * A module listed in {@link #PRECOMPILED_MODULES} is searched for as a Java class
+	 * before the path is searched, so scripts compiled ahead of time by luajc are used without
+	 * compiling the lua source.
 	 * 
 	 * Once a loader is found, require calls the loader with two arguments: modname and an extra value
 	 * dependent on how it got the loader. If the loader came from a file, this extra value is the file name.
@@ -337,12 +379,23 @@ public class PackageLib extends TwoArgFunction {
 				return varargsOf(v, globals);
 			} catch ( ClassNotFoundException  cnfe ) {
 				return valueOf("\n\tno class '"+classname+"'" );
+			} catch ( NoClassDefFoundError ncdfe ) {
+				return valueOf("\n\tno class '"+classname+"', "+ncdfe );
 			} catch ( Exception e ) {
 				return valueOf("\n\tjava load failed on '"+classname+"', "+e );
 			}
 		}
 	}
 	
+	public class precompiled_searcher extends VarArgFunction {
+		public Varargs invoke(Varargs args) {
+			String name = args.checkjstring(1);
+			if ( !PRECOMPILED.contains(name) )
+				return valueOf("\n\tno precompiled module '"+name+"'" );
+			return java_searcher.invoke(args);
+		}
+	}
+	
 	/** Convert lua filename to valid class name */
 	public static final String toClassname( String filename ) {
 		int n=filename.length();
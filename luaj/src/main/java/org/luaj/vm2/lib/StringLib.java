@@ -23,9 +23,12 @@ package org.luaj.vm2.lib;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.luaj.vm2.Buffer;
 import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -54,6 +57,14 @@ import org.luaj.vm2.compiler.DumpState;
  * } </pre>
  * <p>
  * This is a direct port of the corresponding library in C.
+ * <p>
+ * Patterns passed to {@code string.find}, {@code string.match}, {@code string.gmatch}
+ * and {@code string.gsub} are compiled once into a program, and format strings passed to
+ * {@code string.format} are parsed once into a sequence of literals and conversions.
+ * Both are kept in bounded least-recently-used caches owned by this library instance,
+ * so a pattern or format used repeatedly is not parsed again on every call.
+ * Patterns and formats that are malformed, or longer than {@link #MAX_COMPILED_PATTERN_LENGTH},
+ * are interpreted directly as before.
  * @see LibFunction
  * @see org.luaj.vm2.lib.jse.JsePlatform
  * @see org.luaj.vm2.lib.jme.JmePlatform
@@ -61,10 +72,38 @@ import org.luaj.vm2.compiler.DumpState;
  */
 public class StringLib extends TwoArgFunction {
 
+	/** Default number of compiled patterns, and of compiled format strings, kept by a StringLib */
+	public static final int DEFAULT_PATTERN_CACHE_SIZE = 64;
+
+	/** Length in bytes of the longest pattern or format string that is compiled and cached */
+	public static final int MAX_COMPILED_PATTERN_LENGTH = 256;
+
+	private final CompiledCache patterns;
+
+	private final CompiledCache formats;
+
 	/** Construct a StringLib, which can be initialized by calling it with a
 	 * modname string, and a global environment table as arguments using
 	 * {@link #call(LuaValue, LuaValue)}. */
 	public StringLib() {
+		this(DEFAULT_PATTERN_CACHE_SIZE);
+	}
+
+	/** Construct a StringLib that keeps up to a given number of compiled patterns and format strings.
+	 * @param cachesize maximum number of compiled patterns, and of compiled format strings, kept,
+	 * or 0 to interpret every pattern and format string
+	 */
+	public StringLib(int cachesize) {
+		this.patterns = new CompiledCache(cachesize) {
+			Object compile(LuaString p) {
+				return CompiledPattern.compile(p);
+			}
+		};
+		this.formats = new CompiledCache(cachesize) {
+			Object compile(LuaString fmt) {
+				return compileformat(fmt);
+			}
+		};
 	}
 
 	/** Perform one-time initialization on the library by creating a table
@@ -201,7 +240,7 @@ public class StringLib extends TwoArgFunction {
 	 * If the pattern has captures, then in a successful match the captured values
 	 * are also returned, after the two indices.
 	 */
-	static final class find extends VarArgFunction {
+	final class find extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			return str_find_aux( args, true );
 		}
@@ -238,6 +277,17 @@ public class StringLib extends TwoArgFunction {
 			int arg = 1;
 			int c;
 			
+			Object[] parts = (Object[]) formats.get( fmt );
+			if ( parts != null ) {
+				for ( int i = 0; i < parts.length; i++ ) {
+					if ( parts[i] instanceof LuaString )
+						result.append( (LuaString) parts[i] );
+					else
+						format( result, (FormatDesc) parts[i], args, ++arg );
+				}
+				return result.tostring();
+			}
+			
 			for ( int i = 0; i < n; ) {
 				switch ( c = fmt.luaByte( i++ ) ) {
 				case '\n':
@@ -255,42 +305,7 @@ public class StringLib extends TwoArgFunction {
 							arg++;
 							FormatDesc fdsc = new FormatDesc(args, fmt, i );
 							i += fdsc.length;
-							switch ( fdsc.conversion ) {
-							case 'c':
-								fdsc.format( result, (byte)args.checkint( arg ) );
-								break;
-							case 'i':
-							case 'd':
-								fdsc.format( result, args.checklong( arg ) );
-								break;
-							case 'o':
-							case 'u':
-							case 'x':
-							case 'X':
-								fdsc.format( result, args.checklong( arg ) );
-								break;
-							case 'e':
-							case 'E':
-							case 'f':
-							case 'g':
-							case 'G':
-								fdsc.format( result, args.checkdouble( arg ) );
-								break;
-							case 'q':
-								addquoted( result, args.checkstring( arg ) );
-								break;
-							case 's': {
-								LuaString s = args.checkstring( arg );
-								if ( fdsc.precision == -1 && s.length() >= 100 ) {
-									result.append( s );
-								} else {
-									fdsc.format( result, s );
-								}
-							}	break;
-							default:
-								error("invalid option '%"+(char)fdsc.conversion+"' to 'format'");
-								break;
-							}
+							format( result, fdsc, args, arg );
 						}
 					}
 				}
@@ -298,8 +313,92 @@ public class StringLib extends TwoArgFunction {
 			
 			return result.tostring();
 		}
+		
+		private void format( Buffer result, FormatDesc fdsc, Varargs args, int arg ) {
+			switch ( fdsc.conversion ) {
+			case 'c':
+				fdsc.format( result, (byte)args.checkint( arg ) );
+				break;
+			case 'i':
+			case 'd':
+				fdsc.format( result, args.checklong( arg ) );
+				break;
+			case 'o':
+			case 'u':
+			case 'x':
+			case 'X':
+				fdsc.format( result, args.checklong( arg ) );
+				break;
+			case 'e':
+			case 'E':
+			case 'f':
+			case 'g':
+			case 'G':
+				fdsc.format( result, args.checkdouble( arg ) );
+				break;
+			case 'q':
+				addquoted( result, args.checkstring( arg ) );
+				break;
+			case 's': {
+				LuaString s = args.checkstring( arg );
+				if ( fdsc.precision == -1 && s.length() >= 100 ) {
+					result.append( s );
+				} else {
+					fdsc.format( result, s );
+				}
+			}	break;
+			default:
+				error("invalid option '%"+(char)fdsc.conversion+"' to 'format'");
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Split a format string into an array of the literal {@link LuaString}s and 
+	 * the {@link FormatDesc}s of its conversions, or return null if it has an invalid 
+	 * conversion, so that it is interpreted instead and errors are raised in the 
+	 * same order relative to argument errors as without compiling.
+	 */
+	Object[] compileformat( LuaString fmt ) {
+		final int n = fmt.length();
+		ByteArrayOutputStream literal = new ByteArrayOutputStream( n );
+		Object[] parts = new Object[n];
+		int nparts = 0;
+		try {
+			for ( int i = 0; i < n; ) {
+				int c = fmt.luaByte( i++ );
+				if ( c != L_ESC ) {
+					literal.write( c );
+				} else if ( i < n ) {
+					if ( fmt.luaByte( i ) == L_ESC ) {
+						++i;
+						literal.write( L_ESC );
+					} else {
+						FormatDesc fdsc = new FormatDesc( NONE, fmt, i );
+						i += fdsc.length;
+						if ( FORMAT_CONVERSIONS.indexOf( fdsc.conversion ) < 0 )
+							return null;
+						if ( literal.size() > 0 ) {
+							parts[nparts++] = LuaString.valueUsing( literal.toByteArray() );
+							literal.reset();
+						}
+						parts[nparts++] = fdsc;
+					}
+				}
+			}
+		} catch ( LuaError e ) {
+			return null;
+		}
+		if ( literal.size() > 0 )
+			parts[nparts++] = LuaString.valueUsing( literal.toByteArray() );
+		Object[] a = new Object[nparts];
+		System.arraycopy( parts, 0, a, 0, nparts );
+		return a;
 	}
 	
+	private static final String FORMAT_CONVERSIONS = "cdiouxXeEfgGqs";
+	
 	static void addquoted(Buffer buf, LuaString s) {
 		int c;
 		buf.append( (byte) '"' );
@@ -330,6 +429,25 @@ public class StringLib extends TwoArgFunction {
 	
 	private static final String FLAGS = "-+ #0";
 	
+	/** Largest precision of a %f conversion that is written directly */
+	private static final int MAX_FIXED_PRECISION = 9;
+	
+	private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+	
+	/** Bound on a %f value scaled by its precision that is written directly, small enough that the fraction is exact to about 1e-7 */
+	private static final double MAX_FIXED = 1 << 30;
+	
+	/** Distance from halfway within which a scaled %f value is rounded by {@link StringLib#format(String, double)} */
+	private static final double FIXED_TIE_MARGIN = 1e-6;
+	
+	/** Return the number of digits of a number in a radix, not counting any sign */
+	static int ndigits( long number, int radix ) {
+		int n = 1;
+		while ( ( number /= radix ) != 0 )
+			n++;
+		return n;
+	}
+	
 	class FormatDesc {
 		
 		private boolean leftAdjust;
@@ -347,18 +465,22 @@ public class StringLib extends TwoArgFunction {
 		
 		public final String src;
 		
+		/** true if a %f conversion can be written directly instead of by {@link StringLib#format(String, double)} */
+		private final boolean fixed;
+		
 		public FormatDesc(Varargs args, LuaString strfrmt, final int start) {
 			int p = start, n = strfrmt.length();
 			int c = 0;
+			int nflags = 0;
 			
 			boolean moreFlags = true;
 			while ( moreFlags ) {
 				switch ( c = ( (p < n) ? strfrmt.luaByte( p++ ) : 0 ) ) {
-				case '-': leftAdjust = true; break;
-				case '+': explicitPlus = true; break;
-				case ' ': space = true; break;
-				case '#': alternateForm = true; break;
-				case '0': zeroPad = true; break;
+				case '-': leftAdjust = true; nflags++; break;
+				case '+': explicitPlus = true; nflags++; break;
+				case ' ': space = true; nflags++; break;
+				case '#': alternateForm = true; nflags++; break;
+				case '0': zeroPad = true; nflags++; break;
 				default: moreFlags = false; break;
 				}
 			}
@@ -391,6 +513,11 @@ public class StringLib extends TwoArgFunction {
 			if ( Character.isDigit( (char) c ) )
 				error("invalid format (width or precision too long)");
 			
+			// flags that java.util.Formatter rejects are left to format(String, double)
+			fixed = c == 'f' && precision <= MAX_FIXED_PRECISION && !alternateForm && !( explicitPlus && space ) 
+				&& !( leftAdjust && zeroPad ) && ( width != -1 || !( leftAdjust || zeroPad ) )
+				&& nflags == ( leftAdjust? 1: 0 ) + ( explicitPlus? 1: 0 ) + ( space? 1: 0 ) + ( zeroPad? 1: 0 )
+				&& StringLib.this.formatsfixed();
 			zeroPad &= !leftAdjust; // '-' overrides '0'
 			conversion = c;
 			length = p - start;
@@ -403,36 +530,24 @@ public class StringLib extends TwoArgFunction {
 		}
 		
 		public void format(Buffer buf, long number) {
-			String digits;
-			
-			if ( number == 0 && precision == 0 ) {
-				digits = "";
-			} else {
-				int radix;
-				switch ( conversion ) {
-				case 'x':
-				case 'X':
-					radix = 16;
-					break;
-				case 'o':
-					radix = 8;
-					break;
-				default:
-					radix = 10;
-					break;
-				}
-				digits = Long.toString( number, radix );
-				if ( conversion == 'X' )
-					digits = digits.toUpperCase();
+			int radix;
+			switch ( conversion ) {
+			case 'x':
+			case 'X':
+				radix = 16;
+				break;
+			case 'o':
+				radix = 8;
+				break;
+			default:
+				radix = 10;
+				break;
 			}
-			
-			int minwidth = digits.length();
-			int ndigits = minwidth;
+			int ndigits = ( number == 0 && precision == 0 ) ? 0 : ndigits( number, radix );
+			int minwidth = ndigits;
 			int nzeros;
 			
-			if ( number < 0 ) {
-				ndigits--;
-			} else if ( explicitPlus || space ) {
+			if ( number < 0 || explicitPlus || space ) {
 				minwidth++;
 			}
 			
@@ -450,10 +565,7 @@ public class StringLib extends TwoArgFunction {
 				pad( buf, ' ', nspaces );
 			
 			if ( number < 0 ) {
-				if ( nzeros > 0 ) {
-					buf.append( (byte)'-' );
-					digits = digits.substring( 1 );
-				}
+				buf.append( (byte)'-' );
 			} else if ( explicitPlus ) {
 				buf.append( (byte)'+' );
 			} else if ( space ) {
@@ -463,14 +575,58 @@ public class StringLib extends TwoArgFunction {
 			if ( nzeros > 0 )
 				pad( buf, '0', nzeros );
 			
-			buf.append( digits );
+			buf.appendDigits( number, radix, ndigits, conversion == 'X' );
 			
 			if ( leftAdjust )
 				pad( buf, ' ', nspaces );
 		}
 		
 		public void format(Buffer buf, double x) {
-			buf.append( StringLib.this.format(src, x) );
+			if ( !( fixed && formatfixed( buf, x ) ) )
+				buf.append( StringLib.this.format(src, x) );
+		}
+		
+		/**
+		 * Write a %f conversion directly, or return false if x is not finite, 
+		 * too large, or so close to halfway between two results that the rounding 
+		 * of the decimal digits of x by java.util.Formatter may differ from the rounding of x.
+		 */
+		private boolean formatfixed(Buffer buf, double x) {
+			final int prec = precision == -1 ? 6 : precision;
+			final long scale = POW10[prec];
+			final boolean negative = Double.doubleToRawLongBits( x ) < 0;
+			final double scaled = Math.abs( x ) * scale;
+			if ( !( scaled < MAX_FIXED ) )
+				return false;
+			final double floor = Math.floor( scaled );
+			final double fraction = scaled - floor;
+			if ( Math.abs( fraction - .5 ) < FIXED_TIE_MARGIN )
+				return false;
+			final long r = (long) floor + ( fraction > .5 ? 1 : 0 );
+			final long ipart = r / scale;
+			final int nint = ndigits( ipart, 10 );
+			int minwidth = nint + ( prec > 0 ? prec + 1 : 0 );
+			if ( negative || explicitPlus || space )
+				minwidth++;
+			final int nzeros = zeroPad && width > minwidth ? width - minwidth : 0;
+			final int nspaces = width > minwidth + nzeros ? width - minwidth - nzeros : 0;
+			if ( !leftAdjust )
+				pad( buf, ' ', nspaces );
+			if ( negative )
+				buf.append( (byte)'-' );
+			else if ( explicitPlus )
+				buf.append( (byte)'+' );
+			else if ( space )
+				buf.append( (byte)' ' );
+			pad( buf, '0', nzeros );
+			buf.appendDigits( ipart, 10, nint, false );
+			if ( prec > 0 ) {
+				buf.append( (byte)'.' );
+				buf.appendDigits( r - ipart * scale, 10, prec, false );
+			}
+			if ( leftAdjust )
+				pad( buf, ' ', nspaces );
+			return true;
 		}
 		
 		public void format(Buffer buf, LuaString s) {
@@ -491,6 +647,14 @@ public class StringLib extends TwoArgFunction {
 		return String.valueOf(x);
 	}
 	
+	/** Return true if {@link #format(String, double)} formats a %f conversion as C does,
+	 * with a '.' decimal point and ASCII digits, so that it may be written directly instead.
+	 * The default implementation returns false, as {@link #format(String, double)} ignores the format.
+	 */
+	protected boolean formatsfixed() {
+		return false;
+	}
+	
 	/**
 	 * string.gmatch (s, pattern)
 	 * 
@@ -515,11 +679,12 @@ public class StringLib extends TwoArgFunction {
 	 * For this function, a '^' at the start of a pattern does not work as an anchor,
 	 * as this would prevent the iteration.
 	 */
-	static final class gmatch extends VarArgFunction {
+	final class gmatch extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaString src = args.checkstring( 1 );
 			LuaString pat = args.checkstring( 2 );
-			return new GMatchAux(args, src, pat);
+			CompiledPattern cp = (CompiledPattern) patterns.get( pat );
+			return new GMatchAux(args, src, pat, cp != null && !cp.anchor ? cp : null);
 		}
 	}
 
@@ -527,15 +692,19 @@ public class StringLib extends TwoArgFunction {
 		private final int srclen;
 		private final MatchState ms;
 		private int soffset;
-		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
+		public GMatchAux(Varargs args, LuaString src, LuaString pat, CompiledPattern cp) {
 			this.srclen = src.length();
-			this.ms = new MatchState(args, src, pat);
+			this.ms = new MatchState(args, src, pat, cp);
 			this.soffset = 0;
 		}
 		public Varargs invoke(Varargs args) {
 			for ( ; soffset<=srclen; soffset++ ) {
+				if ( ( soffset = ms.next( soffset ) ) == -1 ) {
+					soffset = srclen + 1;
+					break;
+				}
 				ms.reset();
-				int res = ms.match(soffset, 0);
+				int res = ms.start(soffset, 0);
 				if ( res >=0 ) {
 					int soff = soffset;
 					soffset = res;
@@ -593,7 +762,7 @@ public class StringLib extends TwoArgFunction {
 	 *	     x = string.gsub("$name-$version.tar.gz", "%$(%w+)", t)
 	 *	     --> x="lua-5.1.tar.gz"
 	 */
-	static final class gsub extends VarArgFunction {
+	final class gsub extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaString src = args.checkstring( 1 );
 			final int srclen = src.length();
@@ -603,13 +772,20 @@ public class StringLib extends TwoArgFunction {
 			final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
 			
 			Buffer lbuf = new Buffer( srclen );
-			MatchState ms = new MatchState( args, src, p );
+			MatchState ms = new MatchState( args, src, p, (CompiledPattern) patterns.get( p ) );
 			
 			int soffset = 0;
 			int n = 0;
 			while ( n < max_s ) {
+				if ( !anchor ) {
+					int next = ms.next( soffset );
+					if ( next == -1 )
+						break;
+					while ( soffset < next )
+						lbuf.append( (byte) src.luaByte( soffset++ ) );
+				}
 				ms.reset();
-				int res = ms.match( soffset, anchor ? 1 : 0 );
+				int res = ms.start( soffset, anchor ? 1 : 0 );
 				if ( res != -1 ) {
 					n++;
 					ms.add_value( lbuf, soffset, res, repl );
@@ -662,7 +838,7 @@ public class StringLib extends TwoArgFunction {
 	 * A third, optional numerical argument init specifies where to start the
 	 * search; its default value is 1 and may be negative.
 	 */
-	static final class match extends VarArgFunction {
+	final class match extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			return str_find_aux( args, false );
 		}
@@ -750,7 +926,7 @@ public class StringLib extends TwoArgFunction {
 	/**
 	 * This utility method implements both string.find and string.match.
 	 */
-	static Varargs str_find_aux( Varargs args, boolean find ) {
+	Varargs str_find_aux( Varargs args, boolean find ) {
 		LuaString s = args.checkstring( 1 );
 		LuaString pat = args.checkstring( 2 );
 		int init = args.optint( 3, 1 );
@@ -769,7 +945,7 @@ public class StringLib extends TwoArgFunction {
 				return varargsOf( valueOf(result+1), valueOf(result+pat.length()) );
 			}
 		} else {
-			MatchState ms = new MatchState( args, s, pat );
+			MatchState ms = new MatchState( args, s, pat, (CompiledPattern) patterns.get( pat ) );
 			
 			boolean anchor = false;
 			int poff = 0;
@@ -781,8 +957,10 @@ public class StringLib extends TwoArgFunction {
 			int soff = init;
 			do {
 				int res;
+				if ( !anchor && ( soff = ms.next( soff ) ) == -1 )
+					break;
 				ms.reset();
-				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
+				if ( ( res = ms.start( soff, poff ) ) != -1 ) {
 					if ( find ) {
 						return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
 					} else {
@@ -850,23 +1028,46 @@ public class StringLib extends TwoArgFunction {
 		final LuaString s;
 		final LuaString p;
 		final Varargs args;
+		final CompiledPattern cp;
 		int level;
 		int[] cinit;
 		int[] clen;
 		
 		MatchState( Varargs args, LuaString s, LuaString pattern ) {
+			this( args, s, pattern, null );
+		}
+		
+		MatchState( Varargs args, LuaString s, LuaString pattern, CompiledPattern cp ) {
 			this.s = s;
 			this.p = pattern;
 			this.args = args;
+			this.cp = cp;
 			this.level = 0;
-			this.cinit = new int[ MAX_CAPTURES ];
-			this.clen = new int[ MAX_CAPTURES ];
+			this.cinit = new int[ cp != null ? cp.ncaptures : MAX_CAPTURES ];
+			this.clen = new int[ cp != null ? cp.ncaptures : MAX_CAPTURES ];
 		}
 		
 		void reset() {
 			level = 0;
 		}
 		
+		/**
+		 * Return the first offset in s at or after soffset where an unanchored
+		 * match can start, or -1 if there is none.
+		 */
+		int next( int soffset ) {
+			return cp != null ? cp.next( this, soffset ) : soffset;
+		}
+		
+		/**
+		 * Match the pattern at soffset, using the compiled program if there is one,
+		 * otherwise interpreting the pattern from poffset.
+		 * Returns the offset into s where the match ends, or -1.
+		 */
+		int start( int soffset, int poffset ) {
+			return cp != null ? cp.match( this, soffset, 0 ) : match( soffset, poffset );
+		}
+		
 		private void add_s( Buffer lbuf, LuaString news, int soff, int e ) {
 			int l = news.length();
 			for ( int i = 0; i < l; ++i ) {
@@ -1210,4 +1411,418 @@ public class StringLib extends TwoArgFunction {
 			return -1;
 		}
 	}
+
+	/**
+	 * Pattern compiled into a sequence of items, one per single character class,
+	 * capture, or special item of the pattern, so that matching does not parse
+	 * the pattern or scan bracket classes again.  Character classes are expanded
+	 * into tables of the 256 byte values they match.
+	 * <p>
+	 * Items are matched with the same backtracking as {@link MatchState#match(int, int)},
+	 * and captures are recorded in the {@link MatchState}, so results are the same
+	 * as interpreting the pattern.  Instances are immutable and may be shared between threads.
+	 */
+	static final class CompiledPattern {
+		static final int CHAR = 0;
+		static final int ANY = 1;
+		static final int SET = 2;
+		static final int OPEN = 3;
+		static final int POSITION = 4;
+		static final int CLOSE = 5;
+		static final int BALANCE = 6;
+		static final int FRONTIER = 7;
+		static final int BACKREF = 8;
+		static final int END = 9;
+		
+		/** true if the pattern starts with '^' */
+		final boolean anchor;
+		
+		/** literal bytes every match starts with, or null */
+		final LuaString prefix;
+		
+		/** table of the bytes a match can start with, or null if any byte can start a match */
+		private final boolean[] first;
+		
+		/** number of captures in the pattern */
+		final int ncaptures;
+		
+		private final int n;
+		private final int[] op;
+		private final int[] arg;
+		private final int[] quant;
+		private final boolean[][] set;
+		
+		private CompiledPattern( boolean anchor, int ncaptures, int n, int[] op, int[] arg, int[] quant, boolean[][] set ) {
+			this.anchor = anchor;
+			this.ncaptures = ncaptures;
+			this.n = n;
+			this.op = op;
+			this.arg = arg;
+			this.quant = quant;
+			this.set = set;
+			int i = 0;
+			while ( i < n && ( op[i] == OPEN || op[i] == POSITION ) )
+				i++;
+			if ( i < n && mustmatch( i ) && op[i] != ANY ) {
+				this.first = op[i] == SET ? set[i] : new boolean[256];
+				if ( op[i] == CHAR )
+					this.first[arg[i]] = true;
+			} else if ( i < n && op[i] == BALANCE ) {
+				this.first = new boolean[256];
+				this.first[arg[i] >> 8] = true;
+			} else {
+				this.first = null;
+			}
+			int j = i;
+			while ( j < n && op[j] == CHAR && quant[j] == 0 )
+				j++;
+			if ( j > i ) {
+				byte[] b = new byte[j - i];
+				for ( int k = i; k < j; k++ )
+					b[k - i] = (byte) arg[k];
+				this.prefix = LuaString.valueUsing( b );
+			} else {
+				this.prefix = null;
+			}
+		}
+		
+		/**
+		 * Compile a pattern, or return null if it is malformed or uses captures
+		 * in ways that only fail when matched, so that it is interpreted instead
+		 * and any error is raised as it would be without compiling.
+		 */
+		static CompiledPattern compile( LuaString p ) {
+			try {
+				return compile( new MatchState( NONE, EMPTYSTRING, p ) );
+			} catch ( LuaError e ) {
+				return null;
+			}
+		}
+		
+		private static CompiledPattern compile( MatchState ms ) {
+			final LuaString p = ms.p;
+			final int plen = p.length();
+			final boolean anchor = plen > 0 && p.luaByte( 0 ) == '^';
+			int[] op = new int[plen];
+			int[] arg = new int[plen];
+			int[] quant = new int[plen];
+			boolean[][] set = new boolean[plen][];
+			int[] open = new int[MAX_CAPTURES];
+			boolean[] position = new boolean[MAX_CAPTURES];
+			int nopen = 0;
+			int ncaptures = 0;
+			int n = 0;
+			int poff = anchor ? 1 : 0;
+			while ( poff < plen ) {
+				switch ( p.luaByte( poff ) ) {
+				case '(':
+					if ( ncaptures == MAX_CAPTURES )
+						return null;
+					if ( poff + 1 < plen && p.luaByte( poff + 1 ) == ')' ) {
+						position[ncaptures] = true;
+						op[n++] = POSITION;
+						poff += 2;
+					} else {
+						open[nopen++] = ncaptures;
+						op[n++] = OPEN;
+						poff++;
+					}
+					ncaptures++;
+					continue;
+				case ')':
+					if ( nopen == 0 )
+						return null;
+					op[n] = CLOSE;
+					arg[n++] = open[--nopen];
+					poff++;
+					continue;
+				case L_ESC:
+					if ( poff + 1 == plen )
+						return null;
+					switch ( p.luaByte( poff + 1 ) ) {
+					case 'b':
+						if ( poff + 3 >= plen )
+							return null;
+						op[n] = BALANCE;
+						arg[n++] = p.luaByte( poff + 2 ) << 8 | p.luaByte( poff + 3 );
+						poff += 4;
+						continue;
+					case 'f': {
+						poff += 2;
+						if ( poff == plen || p.luaByte( poff ) != '[' )
+							return null;
+						int ep = ms.classend( poff );
+						boolean[] t = new boolean[256];
+						for ( int c = 0; c < 256; c++ )
+							t[c] = ms.matchbracketclass( c, poff, ep - 1 );
+						op[n] = FRONTIER;
+						set[n++] = t;
+						poff = ep;
+						continue;
+					}
+					default: {
+						int c = p.luaByte( poff + 1 );
+						if ( Character.isDigit( (char) c ) ) {
+							int l = c - '1';
+							if ( l < 0 || l >= ncaptures || position[l] )
+								return null;
+							for ( int i = 0; i < nopen; i++ )
+								if ( open[i] == l )
+									return null;
+							op[n] = BACKREF;
+							arg[n++] = l;
+							poff += 2;
+							continue;
+						}
+						break;
+					}
+					}
+					break;
+				case '$':
+					if ( poff + 1 == plen ) {
+						op[n++] = END;
+						poff++;
+						continue;
+					}
+					break;
+				}
+				int ep = ms.classend( poff );
+				switch ( p.luaByte( poff ) ) {
+				case '.':
+					op[n] = ANY;
+					break;
+				case L_ESC:
+				case '[': {
+					boolean[] t = new boolean[256];
+					int count = 0, last = 0;
+					for ( int c = 0; c < 256; c++ ) {
+						if ( t[c] = ms.singlematch( c, poff, ep ) ) {
+							count++;
+							last = c;
+						}
+					}
+					if ( count == 1 ) {
+						op[n] = CHAR;
+						arg[n] = last;
+					} else {
+						op[n] = SET;
+						set[n] = t;
+					}
+					break;
+				}
+				default:
+					op[n] = CHAR;
+					arg[n] = p.luaByte( poff );
+					break;
+				}
+				int q = ep < plen ? p.luaByte( ep ) : 0;
+				if ( q == '?' || q == '*' || q == '+' || q == '-' ) {
+					quant[n++] = q;
+					poff = ep + 1;
+				} else {
+					n++;
+					poff = ep;
+				}
+			}
+			return new CompiledPattern( anchor, ncaptures, n, op, arg, quant, set );
+		}
+		
+		/** true if item i is a single character class that matches at least once */
+		private boolean mustmatch( int i ) {
+			return op[i] <= SET && ( quant[i] == 0 || quant[i] == '+' );
+		}
+		
+		/**
+		 * Return the first offset in s at or after soffset where a match can start,
+		 * or -1 if there is none.
+		 */
+		int next( MatchState ms, int soffset ) {
+			if ( prefix != null )
+				return ms.s.indexOf( prefix, soffset );
+			if ( first == null )
+				return soffset;
+			final boolean[] first = this.first;
+			final byte[] b = ms.s.m_bytes;
+			final int o = ms.s.m_offset;
+			final int slen = ms.s.m_length;
+			for ( ; soffset < slen; soffset++ )
+				if ( first[b[o + soffset] & 0xff] )
+					return soffset;
+			return -1;
+		}
+		
+		private boolean single( int i, int c ) {
+			switch ( op[i] ) {
+			case CHAR: return arg[i] == c;
+			case ANY: return true;
+			default: return set[i][c];
+			}
+		}
+		
+		/**
+		 * Match items from i on at soffset.  If there is a match, returns offset into s
+		 * where match ends, otherwise returns -1.
+		 */
+		int match( MatchState ms, int soffset, int i ) {
+			final byte[] b = ms.s.m_bytes;
+			final int o = ms.s.m_offset;
+			final int slen = ms.s.m_length;
+			while ( true ) {
+				if ( i == n )
+					return soffset;
+				switch ( op[i] ) {
+				case OPEN:
+					return start_capture( ms, soffset, i, CAP_UNFINISHED );
+				case POSITION:
+					return start_capture( ms, soffset, i, CAP_POSITION );
+				case CLOSE: {
+					int l = arg[i];
+					ms.clen[l] = soffset - ms.cinit[l];
+					int res = match( ms, soffset, i + 1 );
+					if ( res == -1 )
+						ms.clen[l] = CAP_UNFINISHED;
+					return res;
+				}
+				case BALANCE: {
+					final int open = arg[i] >> 8, close = arg[i] & 0xff;
+					if ( soffset >= slen || ( b[o + soffset] & 0xff ) != open )
+						return -1;
+					int cont = 1;
+					do {
+						if ( ++soffset >= slen )
+							return -1;
+						int c = b[o + soffset] & 0xff;
+						if ( c == close )
+							cont--;
+						else if ( c == open )
+							cont++;
+					} while ( cont > 0 );
+					soffset++;
+					i++;
+					continue;
+				}
+				case FRONTIER: {
+					int previous = ( soffset == 0 ) ? 0 : b[o + soffset - 1] & 0xff;
+					int next = ( soffset == slen ) ? 0 : b[o + soffset] & 0xff;
+					if ( set[i][previous] || !set[i][next] )
+						return -1;
+					i++;
+					continue;
+				}
+				case BACKREF:
+					if ( ( soffset = ms.match_capture( soffset, arg[i] + '1' ) ) == -1 )
+						return -1;
+					i++;
+					continue;
+				case END:
+					return ( soffset == slen ) ? soffset : -1;
+				}
+				boolean m = soffset < slen && single( i, b[o + soffset] & 0xff );
+				switch ( quant[i] ) {
+				case '?':
+					int res;
+					if ( m && ( ( res = match( ms, soffset + 1, i + 1 ) ) != -1 ) )
+						return res;
+					i++;
+					continue;
+				case '*':
+					return max_expand( ms, soffset, i );
+				case '+':
+					return ( m ? max_expand( ms, soffset + 1, i ) : -1 );
+				case '-':
+					return min_expand( ms, soffset, i );
+				default:
+					if ( !m )
+						return -1;
+					soffset++;
+					i++;
+					continue;
+				}
+			}
+		}
+		
+		private int max_expand( MatchState ms, int soff, int i ) {
+			final byte[] b = ms.s.m_bytes;
+			final int o = ms.s.m_offset;
+			final int slen = ms.s.m_length;
+			int k = soff;
+			while ( k < slen && single( i, b[o + k] & 0xff ) )
+				k++;
+			if ( i + 1 == n )
+				return k;
+			final boolean skip = mustmatch( i + 1 );
+			for ( ; k >= soff; k-- ) {
+				if ( skip && ( k == slen || !single( i + 1, b[o + k] & 0xff ) ) )
+					continue;
+				int res = match( ms, k, i + 1 );
+				if ( res != -1 )
+					return res;
+			}
+			return -1;
+		}
+		
+		private int min_expand( MatchState ms, int soff, int i ) {
+			final byte[] b = ms.s.m_bytes;
+			final int o = ms.s.m_offset;
+			final int slen = ms.s.m_length;
+			final boolean skip = i + 1 < n && mustmatch( i + 1 );
+			for ( ;; ) {
+				int res;
+				if ( !( skip && ( soff == slen || !single( i + 1, b[o + soff] & 0xff ) ) )
+						&& ( res = match( ms, soff, i + 1 ) ) != -1 )
+					return res;
+				else if ( soff < slen && single( i, b[o + soff] & 0xff ) )
+					soff++;
+				else return -1;
+			}
+		}
+		
+		private int start_capture( MatchState ms, int soff, int i, int what ) {
+			int level = ms.level;
+			ms.cinit[ level ] = soff;
+			ms.clen[ level ] = what;
+			ms.level = level + 1;
+			int res = match( ms, soff, i + 1 );
+			if ( res == -1 )
+				ms.level--;
+			return res;
+		}
+	}
+	
+	/**
+	 * Bounded least-recently-used cache of values compiled from strings by {@link #compile(LuaString)}.
+	 * Strings that cannot be compiled are remembered too, so they are not compiled again.
+	 */
+	static abstract class CompiledCache extends LinkedHashMap {
+		private static final Object INTERPRETED = new Object();
+		
+		private final int capacity;
+		
+		CompiledCache( int capacity ) {
+			super( 16, .75f, true );
+			this.capacity = capacity;
+		}
+		
+		protected boolean removeEldestEntry( Map.Entry eldest ) {
+			return size() > capacity;
+		}
+		
+		/** Compile a string, or return null if it must be interpreted. */
+		abstract Object compile( LuaString s );
+		
+		/** Return the compiled value of a string, or null if it must be interpreted. */
+		synchronized Object get( LuaString s ) {
+			if ( capacity <= 0 || s.m_length > MAX_COMPILED_PATTERN_LENGTH )
+				return null;
+			Object o = super.get( s );
+			if ( o == null ) {
+				o = compile( s );
+				if ( s.m_bytes.length != s.m_length )
+					s = LuaString.valueOf( s.m_bytes, s.m_offset, s.m_length );
+				put( s, o != null ? o : INTERPRETED );
+				return o;
+			}
+			return o != INTERPRETED ? o : null;
+		}
+	}
 }
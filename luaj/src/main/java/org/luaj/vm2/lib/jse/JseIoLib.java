@@ -28,6 +28,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaError;
@@ -40,7 +47,10 @@ import org.luaj.vm2.lib.LibFunction;
  * Subclass of {@link IoLib} and therefore {@link LibFunction} which implements the lua standard {@code io} 
  * library for the JSE platform. 
  * <p> 
- * It uses RandomAccessFile to implement seek on files.  
+ * It uses RandomAccessFile to implement seek on files, 
+ * and reads and writes them through a buffered {@link FileChannel}.  
+ * Files opened with mode {@code "rm"} are read-only and memory-mapped, 
+ * which suits large data files that are read once or by several {@link Globals}.  
  * <p>
  * Typically, this library is included as part of a call to 
  * {@link org.luaj.vm2.lib.jse.JsePlatform#standardGlobals()}
@@ -84,6 +94,7 @@ public class JseIoLib extends IoLib {
 	}
 	
 	protected File openFile( String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode ) throws IOException {
+		Pending.writecollected();
 		RandomAccessFile f = new RandomAccessFile(filename,readMode? "r": "rw");
 		if ( appendMode ) {
 			f.seek(f.length());
@@ -91,7 +102,24 @@ public class JseIoLib extends IoLib {
 			if ( ! readMode )
 				f.setLength(0);
 		}
-		return new FileImpl( f );
+		return new ChannelFile( f, readMode );
+	}
+
+	protected File openMappedFile( String filename, boolean binaryMode ) throws IOException {
+		Pending.writecollected();
+		RandomAccessFile f = new RandomAccessFile(filename,"r");
+		try {
+			long size = f.length();
+			if ( size > Integer.MAX_VALUE ) {
+				File file = new ChannelFile( f, true );
+				f = null;
+				return file;
+			}
+			return new MappedFile( f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size) );
+		} finally {
+			if ( f != null )
+				f.close();
+		}
 	}
 	
 	protected File openProgram(String prog, String mode) throws IOException {
@@ -104,7 +132,7 @@ public class JseIoLib extends IoLib {
 	protected File tmpFile() throws IOException {
 		java.io.File f = java.io.File.createTempFile(".luaj","bin");
 		f.deleteOnExit();
-		return new FileImpl( new RandomAccessFile(f,"rw") );
+		return new ChannelFile( new RandomAccessFile(f,"rw"), false );
 	}
 	
 	private static void notimplemented() {
@@ -225,6 +253,397 @@ public class JseIoLib extends IoLib {
 		}
 	}
 
+	/** 
+	 * File backed by a {@link FileChannel} with a direct buffer shared by reads and writes.
+	 * <p>
+	 * The buffer holds the bytes of the file starting at {@code start}.  
+	 * When reading, its position is the current file position and its limit the end of valid data.  
+	 * When writing, it holds bytes not yet written, which are written before any read, seek or close, 
+	 * so the buffer stays coherent with the file.  
+	 * All channel access is positional, so the channel position is never relied on. 
+	 */
+	private final class ChannelFile extends File {
+		private static final int BUFFER_SIZE = 8192;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final boolean readonly;
+		private long start;
+		private boolean writing = false;
+		private boolean closed = false;
+		private boolean nobuffer = false;
+		private Pending pending;
+		private ChannelFile( RandomAccessFile file, boolean readonly ) throws IOException {
+			this.file = file;
+			this.readonly = readonly;
+			this.channel = file.getChannel();
+			this.start = file.getFilePointer();
+			buf.limit(0);
+		}
+		public String tojstring() {
+			return "file ("+this.hashCode()+")";
+		}
+		public boolean isstdfile() {
+			return false;
+		}
+		public void close() throws IOException  {
+			closed = true;
+			try {
+				flushbuffer();
+			} finally {
+				file.close();
+			}
+		}
+		public void flush() throws IOException {
+			flushbuffer();
+		}
+		public void write(LuaString s) throws IOException {
+			if ( readonly )
+				throw new IOException("Bad file descriptor");
+			if ( ! writing ) {
+				start += buf.position();
+				buf.clear();
+				writing = true;
+				pending = Pending.add(this);
+			}
+			if ( s.m_length > buf.remaining() ) {
+				flushbuffer();
+				if ( s.m_length > buf.capacity() ) {
+					ByteBuffer b = ByteBuffer.wrap(s.m_bytes, s.m_offset, s.m_length);
+					while ( b.hasRemaining() )
+						start += channel.write(b, start);
+					return;
+				}
+				buf.clear();
+				writing = true;
+				pending = Pending.add(this);
+			}
+			buf.put( s.m_bytes, s.m_offset, s.m_length );
+			if ( nobuffer )
+				flush();
+		}
+		public boolean isclosed() {
+			return closed;
+		}
+		public int seek(String option, int pos) throws IOException {
+			flushbuffer();
+			long target;
+			if ( "set".equals(option) ) {
+				target = pos;
+			} else if ( "end".equals(option) ) {
+				target = channel.size()+pos;
+			} else {
+				target = start+buf.position()+pos;
+			}
+			if ( target < 0 )
+				throw new IOException("Negative seek offset");
+			if ( target >= start && target <= start+buf.limit() ) {
+				buf.position((int) (target-start));
+			} else {
+				start = target;
+				buf.clear().limit(0);
+			}
+			return (int) target;
+		}
+		public void setvbuf(String mode, int size) {
+			nobuffer = "no".equals(mode);
+		}
+
+		// get length remaining to read
+		public int remaining() throws IOException {
+			flushbuffer();
+			return (int) Math.max(0, channel.size()-start-buf.position());
+		}
+		
+		// peek ahead one character
+		public int peek() throws IOException {
+			return fill()? buf.get(buf.position()) & 0xff: -1;
+		}
+		
+		// return char if read, -1 if eof, throw IOException on other exception 
+		public int read() throws IOException {
+			return fill()? buf.get() & 0xff: -1;
+		}
+
+		// return number of bytes read if positive, -1 if eof, throws IOException
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if ( length <= 0 )
+				return 0;
+			if ( ! fill() )
+				return -1;
+			int n = Math.min(length, buf.remaining());
+			buf.get(bytes, offset, n);
+			if ( n < length ) {
+				// read the rest directly from the channel into the array
+				start += buf.position();
+				buf.clear().limit(0);
+				ByteBuffer b = ByteBuffer.wrap(bytes, offset+n, length-n);
+				for ( int r; b.hasRemaining() && (r = channel.read(b, start)) > 0; start += r )
+					;
+				n = b.position() - offset;
+			}
+			return n;
+		}
+
+		// read a line or the rest of the file directly into the backing array of a LuaString
+		public LuaValue readuntil(boolean lineonly) throws IOException {
+			byte[] bytes = null;
+			int n = 0;
+			boolean found = false;
+			while ( ! found && fill() ) {
+				int p = buf.position(), e = buf.limit(), i = p;
+				for ( ; i < e; ++i ) {
+					byte c = buf.get(i);
+					if ( c == 0 || ( lineonly && c == '\n' ) ) {
+						found = true;
+						break;
+					}
+				}
+				int m = i - p;
+				if ( bytes == null )
+					bytes = new byte[Math.max(m, 32)];
+				else if ( n + m > bytes.length )
+					bytes = resize(bytes, Math.max(n + m, bytes.length << 1));
+				buf.get(bytes, n, m);
+				if ( found )
+					buf.get();
+				if ( lineonly ) {
+					// drop carriage returns as the byte-at-a-time reader does
+					int j = n;
+					for ( int k = n; k < n + m; ++k )
+						if ( bytes[k] != '\r' )
+							bytes[j++] = bytes[k];
+					m = j - n;
+				}
+				n += m;
+			}
+			if ( bytes == null )
+				return found? LuaValue.EMPTYSTRING: LuaValue.NIL;
+			if ( n == 0 && ! found )
+				return LuaValue.NIL;
+			if ( bytes.length > n + ( n >> 1 ) + 32 )
+				bytes = resize(bytes, n);
+			return LuaString.valueUsing(bytes, 0, n);
+		}
+
+		/** Make bytes available to read, returning false at end of file */
+		private boolean fill() throws IOException {
+			if ( writing )
+				flushbuffer();
+			if ( buf.hasRemaining() )
+				return true;
+			start += buf.position();
+			buf.clear();
+			int r = channel.read(buf, start);
+			buf.flip();
+			return r > 0;
+		}
+
+		/** Write any buffered bytes, leaving an empty read buffer at the file position */
+		private void flushbuffer() throws IOException {
+			if ( ! writing )
+				return;
+			buf.flip();
+			while ( buf.hasRemaining() )
+				start += channel.write(buf, start);
+			buf.clear().limit(0);
+			writing = false;
+			Pending.remove(pending);
+			pending = null;
+		}
+	}
+
+	/** 
+	 * Read-only file opened with mode {@code "rm"}, held as a {@link MappedByteBuffer} over the whole file.  
+	 * <p>
+	 * Reads are served straight from the mapping, which stays valid after the channel is closed, 
+	 * so pages are shared with the operating system cache and other mappings of the same file. 
+	 * Each string read is copied once from the mapping into its own backing array.  
+	 * The buffer position is the file position, and seeks past the end are kept in {@code pos}. 
+	 */
+	private final class MappedFile extends File {
+		private final MappedByteBuffer buf;
+		private long pos = 0;
+		private boolean closed = false;
+		private MappedFile( MappedByteBuffer buf ) {
+			this.buf = buf;
+		}
+		public String tojstring() {
+			return "file ("+this.hashCode()+")";
+		}
+		public boolean isstdfile() {
+			return false;
+		}
+		public void close() {
+			closed = true;
+		}
+		public void flush() {
+		}
+		public void write(LuaString s) throws IOException {
+			throw new IOException("Bad file descriptor");
+		}
+		public boolean isclosed() {
+			return closed;
+		}
+		public int seek(String option, int offset) throws IOException {
+			long target;
+			if ( "set".equals(option) ) {
+				target = offset;
+			} else if ( "end".equals(option) ) {
+				target = (long) buf.limit()+offset;
+			} else {
+				target = pos+offset;
+			}
+			if ( target < 0 )
+				throw new IOException("Negative seek offset");
+			pos = target;
+			buf.position((int) Math.min(target, buf.limit()));
+			return (int) target;
+		}
+		public void setvbuf(String mode, int size) {
+		}
+		public int remaining() {
+			return buf.remaining();
+		}
+		public int peek() {
+			return buf.hasRemaining()? buf.get(buf.position()) & 0xff: -1;
+		}
+		public int read() {
+			if ( ! buf.hasRemaining() )
+				return -1;
+			++pos;
+			return buf.get() & 0xff;
+		}
+		public int read(byte[] bytes, int offset, int length) {
+			if ( length <= 0 )
+				return 0;
+			if ( ! buf.hasRemaining() )
+				return -1;
+			int n = Math.min(length, buf.remaining());
+			buf.get(bytes, offset, n);
+			pos += n;
+			return n;
+		}
+		public LuaValue readuntil(boolean lineonly) {
+			int p = buf.position(), e = buf.limit(), i = p, cr = 0;
+			for ( ; i < e; ++i ) {
+				byte c = buf.get(i);
+				if ( c == 0 || ( lineonly && c == '\n' ) )
+					break;
+				if ( c == '\r' )
+					++cr;
+			}
+			boolean found = i < e;
+			int m = i - p;
+			byte[] bytes;
+			if ( lineonly && cr > 0 ) {
+				bytes = new byte[m - cr];
+				for ( int k = p, j = 0; k < i; ++k ) {
+					byte c = buf.get(k);
+					if ( c != '\r' )
+						bytes[j++] = c;
+				}
+				buf.position(i);
+			} else {
+				bytes = new byte[m];
+				buf.get(bytes);
+			}
+			if ( found )
+				buf.get();
+			pos = buf.position();
+			if ( bytes.length == 0 )
+				return found? LuaValue.EMPTYSTRING: LuaValue.NIL;
+			return LuaString.valueUsing(bytes);
+		}
+	}
+
+	/** 
+	 * Buffered writes of a {@link ChannelFile}, held by a weak reference to the file 
+	 * and strong references to its channel and buffer, so scripts that never close 
+	 * a file do not lose output.  Writes of files that were collected are done 
+	 * when another file is opened, and all pending writes when the Java VM exits.  
+	 * A file only has pending writes between its first buffered write and the next flush, 
+	 * during which its buffer holds the bytes of the file from {@code start}.
+	 */
+	private static final class Pending extends WeakReference {
+		private static final Set ALL = Collections.synchronizedSet(new HashSet());
+		static {
+			try {
+				Runtime.getRuntime().addShutdownHook(new Thread("luaj-io-flush") {
+					public void run() {
+						Object[] p;
+						synchronized (ALL) {
+							p = ALL.toArray();
+						}
+						for ( int i=0; i<p.length; i++ )
+							((Pending) p[i]).flush();
+					}
+				});
+			} catch ( Exception e ) {
+				// may not be permitted, files must then be closed or flushed
+			}
+		}
+
+		private final FileChannel channel;
+		private final ByteBuffer buf;
+		private final long start;
+
+		private Pending(ChannelFile f) {
+			super(f);
+			this.channel = f.channel;
+			this.buf = f.buf;
+			this.start = f.start;
+		}
+
+		static Pending add(ChannelFile f) {
+			Pending p = new Pending(f);
+			ALL.add(p);
+			return p;
+		}
+
+		static void remove(Pending p) {
+			if ( p != null )
+				ALL.remove(p);
+		}
+
+		/** Write the pending output of files that were collected without being closed. */
+		static void writecollected() {
+			if ( ALL.isEmpty() )
+				return;
+			Object[] p;
+			synchronized (ALL) {
+				p = ALL.toArray();
+			}
+			for ( int i=0; i<p.length; i++ )
+				if ( ((Pending) p[i]).get() == null )
+					((Pending) p[i]).flush();
+		}
+
+		private void flush() {
+			if ( ! ALL.remove(this) )
+				return;
+			try {
+				ChannelFile f = (ChannelFile) get();
+				if ( f != null ) {
+					f.flushbuffer();
+				} else {
+					ByteBuffer b = buf.duplicate();
+					b.flip();
+					for ( long pos = start; b.hasRemaining(); )
+						pos += channel.write(b, pos);
+				}
+			} catch ( Exception e ) {
+				// nothing more can be done
+			}
+		}
+	}
+
+	private static byte[] resize(byte[] bytes, int n) {
+		byte[] b = new byte[n];
+		System.arraycopy(bytes, 0, b, 0, Math.min(n, bytes.length));
+		return b;
+	}
+
 	private final class StdoutFile extends File {
 		private final int file_type;
 
@@ -21,10 +21,18 @@
 ******************************************************************************/
 package org.luaj.vm2.lib.jse;
 
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
 public class JseStringLib extends org.luaj.vm2.lib.StringLib {
 	
+	/** true if the default locale formats numbers with '.' and ASCII digits, as C does */
+	private final boolean cnumbers;
+	
 	/** public constructor */
 	public JseStringLib() {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		cnumbers = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
 	}
 
 	protected String format(String src, double x) {
@@ -36,4 +44,8 @@ public class JseStringLib extends org.luaj.vm2.lib.StringLib {
 		}
 		return out;
 	}
+
+	protected boolean formatsfixed() {
+		return cnumbers;
+	}
 }
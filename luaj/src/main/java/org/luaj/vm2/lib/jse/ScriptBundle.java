@@ -0,0 +1,311 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.ResourceFinder;
+import org.luaj.vm2.lib.VarArgFunction;
+
+/**
+ * A single file holding the precompiled binary chunks of many modules,
+ * with an index for finding a module by name without probing the file system.
+ * <p>
+ * A bundle is produced with the {@code -b} option of {@code luac}:
+ * <pre> {@code
+ * java -cp luaj-jse.jar luac -b -o scripts.bundle main.lua util/strings.lua
+ * } </pre>
+ * Module names are the file paths relative to a module root, which is the current directory
+ * unless {@code -m dir} names another, so that scripts under {@code src} are bundled with
+ * <pre> {@code
+ * java -cp luaj-jse.jar luac -b -m src -o scripts.bundle src/main.lua src/util/strings.lua
+ * } </pre>
+ * and installed into a {@link Globals} after the standard libraries:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * ScriptBundle.open(new File("scripts.bundle")).install(globals);
+ * globals.loadfile("main.lua").call();
+ * } </pre>
+ * Installing adds a searcher ahead of the lua file searcher in {@code package.searchers},
+ * so {@code require "util.strings"} is resolved by one index lookup,
+ * and wraps {@link Globals#finder} so that {@code loadfile} and {@code dofile}
+ * of a bundled file name such as {@code "util/strings.lua"} load the binary chunk.
+ * Names not in the bundle fall through to the previous searchers and finder.
+ * <p>
+ * The bundle file is memory-mapped once, and each module is undumped from a
+ * slice of the mapping with {@link LoadState#undump(ByteBuffer, String)}.
+ * <p>
+ * The file layout, in big-endian order, is:
+ * <pre>
+ * 'L' 'j' 'B' 'n'           signature
+ * int version               {@link #VERSION}
+ * int count                 number of modules
+ * count times:
+ *   short n, n bytes        module name in UTF-8
+ *   int offset, int length  position of the binary chunk from the start of the file
+ * binary chunks, as written by {@link org.luaj.vm2.compiler.DumpState}
+ * </pre>
+ *
+ * @see LoadState
+ * @see org.luaj.vm2.lib.PackageLib
+ * @see ResourceFinder
+ */
+public class ScriptBundle implements ResourceFinder {
+
+	/** Version of the bundle layout */
+	public static final int VERSION = 1;
+
+	/** Signature at the start of a bundle file */
+	private static final byte[] SIGNATURE = { 'L', 'j', 'B', 'n' };
+
+	private final ByteBuffer buffer;
+	private final String name;
+	private final Hashtable index = new Hashtable();
+	private ResourceFinder next;
+
+	/** Open a bundle file by memory-mapping it.
+	 * @param file the bundle file
+	 * @return the bundle
+	 * @throws IOException if the file cannot be read or is not a bundle
+	 */
+	public static ScriptBundle open(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			return new ScriptBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.getName());
+		} finally {
+			fis.close();
+		}
+	}
+
+	/** Construct a bundle around bytes already in memory, such as an application asset.
+	 * @param buffer buffer containing the whole bundle from its position to its limit
+	 * @param name name of the bundle used in messages
+	 * @throws IOException if the buffer does not contain a bundle
+	 */
+	public ScriptBundle(ByteBuffer buffer, String name) throws IOException {
+		this.buffer = buffer.slice();
+		this.name = name;
+		ByteBuffer b = this.buffer.duplicate();
+		try {
+			for (int i = 0; i < SIGNATURE.length; i++)
+				if (b.get() != SIGNATURE[i])
+					throw new IOException("not a script bundle: "+name);
+			int version = b.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported script bundle version "+version+": "+name);
+			for (int i = 0, n = b.getInt(); i < n; i++) {
+				byte[] modname = new byte[b.getShort() & 0xffff];
+				b.get(modname);
+				int offset = b.getInt();
+				int length = b.getInt();
+				if (offset < 0 || length < 0 || offset > this.buffer.limit() - length)
+					throw new IOException("bad index entry in script bundle: "+name);
+				index.put(new String(modname, "UTF-8"), new int[] { offset, length });
+			}
+		} catch (java.nio.BufferUnderflowException e) {
+			throw new IOException("truncated script bundle: "+name);
+		}
+	}
+
+	/** @return the module names in this bundle */
+	public Enumeration names() {
+		return index.keys();
+	}
+
+	/** @return true if the module is in this bundle */
+	public boolean contains(String modname) {
+		return index.containsKey(modname);
+	}
+
+	/** Undump the prototype of a module.
+	 * @param modname the module name, such as {@code "util.strings"}
+	 * @return the prototype, or null if the module is not in this bundle
+	 * @throws IOException if the chunk is malformed
+	 */
+	public Prototype load(String modname) throws IOException {
+		int[] entry = (int[]) index.get(modname);
+		if (entry == null)
+			return null;
+		Prototype p = LoadState.undump(chunk(entry), "@"+toFilename(modname));
+		if (p == null)
+			throw new IOException("not a binary chunk: "+modname+" in "+name);
+		return p;
+	}
+
+	/** Add the bundle searcher to {@code package.searchers} ahead of the lua file searcher,
+	 * and chain {@link Globals#finder} through this bundle.
+	 * @param globals the Globals with the package library loaded
+	 */
+	public void install(Globals globals) {
+		next = globals.finder;
+		globals.finder = this;
+		LuaTable searchers = globals.get("package").get("searchers").checktable();
+		searchers.insert(2, new searcher(globals));
+	}
+
+	/** Open the binary chunk of a bundled file name such as {@code "util/strings.lua"},
+	 * or fall back to the previous finder. */
+	public InputStream findResource(String filename) {
+		String f = filename.replace('\\', '/');
+		if (f.startsWith("./"))
+			f = f.substring(2);
+		if (f.endsWith(".lua")) {
+			int[] entry = (int[]) index.get(f.substring(0, f.length() - 4).replace('/', '.'));
+			if (entry != null) {
+				ByteBuffer b = chunk(entry);
+				if (b.hasArray())
+					return new ByteArrayInputStream(b.array(), b.arrayOffset() + b.position(), b.remaining());
+				byte[] bytes = new byte[b.remaining()];
+				b.get(bytes);
+				return new ByteArrayInputStream(bytes);
+			}
+		}
+		return next != null? next.findResource(filename): null;
+	}
+
+	private ByteBuffer chunk(int[] entry) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(entry[0]);
+		b.limit(entry[0] + entry[1]);
+		return b.slice();
+	}
+
+	/** Convert a module name to the file name it was compiled from */
+	static String toFilename(String modname) {
+		return modname.replace('.', '/') + ".lua";
+	}
+
+	/** Convert a script file name to its module name */
+	public static String toModname(String filename) {
+		String f = filename.replace('\\', '/');
+		if (f.startsWith("./"))
+			f = f.substring(2);
+		if (f.endsWith(".lua"))
+			f = f.substring(0, f.length() - 4);
+		return f.replace('/', '.');
+	}
+
+	/** Searcher for {@code package.searchers} that resolves modules by index lookup. */
+	public class searcher extends VarArgFunction {
+		private final Globals globals;
+		searcher(Globals globals) {
+			this.globals = globals;
+		}
+		public Varargs invoke(Varargs args) {
+			LuaString modname = args.checkstring(1);
+			try {
+				Prototype p = ScriptBundle.this.load(modname.tojstring());
+				if (p == null)
+					return valueOf("\n\tno module '"+modname+"' in "+ScriptBundle.this.name);
+				String filename = toFilename(modname.tojstring());
+				return varargsOf(globals.loader.load(p, "@"+filename, globals), valueOf(filename));
+			} catch (IOException e) {
+				throw new LuaError("error loading module '"+modname+"' from "+ScriptBundle.this.name+": "+e);
+			} catch (LuaError e) {
+				throw e;
+			} catch (RuntimeException e) {
+				// a corrupt chunk, such as one with an unknown constant type
+				throw new LuaError("error loading module '"+modname+"' from "+ScriptBundle.this.name+": "+e);
+			}
+		}
+	}
+
+	/** Collects binary chunks and writes them as a bundle. */
+	public static class Writer {
+		private final Vector names = new Vector();
+		private final Vector chunks = new Vector();
+
+		/** Add the binary chunk of a module, replacing any earlier chunk with the same name.
+		 * @param modname the module name, such as {@code "util.strings"}
+		 * @param chunk the binary chunk as written by {@link org.luaj.vm2.compiler.DumpState}
+		 */
+		public void add(String modname, byte[] chunk) {
+			int i = names.indexOf(modname);
+			if (i >= 0) {
+				chunks.setElementAt(chunk, i);
+			} else {
+				names.addElement(modname);
+				chunks.addElement(chunk);
+			}
+		}
+
+		/** Write the bundle.
+		 * @param out stream to write to, not closed by this method
+		 */
+		public void write(OutputStream out) throws IOException {
+			int n = names.size();
+			byte[][] encoded = new byte[n][];
+			int headersize = SIGNATURE.length + 4 + 4;
+			for (int i = 0; i < n; i++) {
+				encoded[i] = utf8((String) names.elementAt(i));
+				headersize += 2 + encoded[i].length + 4 + 4;
+			}
+			ByteArrayOutputStream header = new ByteArrayOutputStream(headersize);
+			DataOutputStream dos = new DataOutputStream(header);
+			dos.write(SIGNATURE);
+			dos.writeInt(VERSION);
+			dos.writeInt(n);
+			int offset = headersize;
+			for (int i = 0; i < n; i++) {
+				byte[] chunk = (byte[]) chunks.elementAt(i);
+				dos.writeShort(encoded[i].length);
+				dos.write(encoded[i]);
+				dos.writeInt(offset);
+				dos.writeInt(chunk.length);
+				offset += chunk.length;
+			}
+			dos.flush();
+			header.writeTo(out);
+			for (int i = 0; i < n; i++)
+				out.write((byte[]) chunks.elementAt(i));
+		}
+
+		private static byte[] utf8(String s) throws UnsupportedEncodingException {
+			byte[] b = s.getBytes("UTF-8");
+			if (b.length > 0xffff)
+				throw new IllegalArgumentException("module name too long: "+s);
+			return b;
+		}
+	}
+}
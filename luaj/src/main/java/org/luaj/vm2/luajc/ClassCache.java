@@ -0,0 +1,175 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.CacheDirectory;
+import org.luaj.vm2.compiler.DumpState;
+
+/**
+ * Directory of classes generated by {@link LuaJC}, so that a script is compiled
+ * to java bytecode once per version of the script instead of once per process.
+ * <p>
+ * Each entry holds the classes generated for a prototype and its nested prototypes,
+ * in a file named by a SHA-1 digest of the binary chunk of the prototype,
+ * the LuaJ version, {@link #VERSION}, and the names and options passed to the generator.
+ * A changed script or a new LuaJ version therefore gets a new entry.
+ * <p>
+ * Entries are kept in a {@link CacheDirectory}, which writes them under a temporary name
+ * and renames them into place, so processes sharing a directory never read a partial entry.
+ * Once the entries take more than the size limit, the least recently used ones are deleted,
+ * so entries for old versions of a script do not accumulate.
+ * An entry that cannot be read is treated as missing, and the classes are generated again.
+ * The directory may be cleared at any time.
+ * <p>
+ * To use a cache, for example:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * LuaJC.install(globals, new File("luajc-cache"));
+ * globals.loadfile("main.lua").call();
+ * } </pre>
+ *
+ * @see LuaJC#install(org.luaj.vm2.Globals, File, long)
+ */
+public class ClassCache {
+
+	/** Version of the generated code and entry layout, part of every key */
+	public static final int VERSION = 1;
+
+	/** File name suffix of entries */
+	public static final String SUFFIX = ".classes";
+
+	/** Size limit used by {@link #ClassCache(File)}, 16 MB */
+	public static final long DEFAULT_MAX_BYTES = 16 << 20;
+
+	private final CacheDirectory dir;
+
+	/** Construct a cache in a directory, limited to {@link #DEFAULT_MAX_BYTES}.
+	 * @param dir the cache directory, created when the first entry is written
+	 */
+	public ClassCache(File dir) {
+		this(dir, DEFAULT_MAX_BYTES);
+	}
+
+	/** Construct a cache in a directory, which is created when the first entry is written.
+	 * @param dir the cache directory
+	 * @param maxBytes the total size of entries above which the least recently used are deleted
+	 */
+	public ClassCache(File dir, long maxBytes) {
+		this.dir = new CacheDirectory(dir, SUFFIX, maxBytes);
+	}
+
+	/** Compute the key of the classes generated for a prototype.
+	 * @param p the prototype
+	 * @param classname the class name passed to the generator
+	 * @param filename the file name passed to the generator
+	 * @param inlinecaches the inline cache option passed to the generator
+	 * @return the key, a string of hexadecimal digits
+	 */
+	public String key(Prototype p, String classname, String filename, boolean inlinecaches) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IOException("no SHA-1 digest: "+e);
+		}
+		DataOutputStream dos = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		}, md));
+		dos.writeUTF(Lua._VERSION);
+		dos.writeInt(VERSION);
+		dos.writeUTF(classname);
+		dos.writeUTF(filename);
+		dos.writeBoolean(inlinecaches);
+		DumpState.dump(p, dos, false);
+		dos.flush();
+		return CacheDirectory.hex(md.digest());
+	}
+
+	/** Read the classes of an entry, and mark it as recently used.
+	 * @param key the key computed by {@link #key(Prototype, String, String, boolean)}
+	 * @return Hashtable of class name to bytecode, or null if there is no readable entry
+	 */
+	public Hashtable get(String key) {
+		try {
+			byte[] contents = dir.get(key);
+			if ( contents == null )
+				return null;
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(contents));
+			Hashtable classes = new Hashtable();
+			for ( int i=0, n=dis.readInt(); i<n; i++ ) {
+				String classname = dis.readUTF();
+				int length = dis.readInt();
+				if ( length < 0 || length > dis.available() )
+					throw new IOException("bad length");
+				byte[] bytecode = new byte[length];
+				dis.readFully(bytecode);
+				classes.put(classname, bytecode);
+			}
+			return classes;
+		} catch ( Exception e ) {
+			return null;
+		}
+	}
+
+	/** Write the classes of an entry, replacing any entry with the same key,
+	 * and delete the least recently used entries if the cache is over its size limit.
+	 * @param key the key computed by {@link #key(Prototype, String, String, boolean)}
+	 * @param classes Hashtable of class name to bytecode
+	 */
+	public void put(String key, Hashtable classes) throws IOException {
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(contents);
+		dos.writeInt(classes.size());
+		for ( Enumeration e = classes.keys(); e.hasMoreElements(); ) {
+			String classname = (String) e.nextElement();
+			byte[] bytecode = (byte[]) classes.get(classname);
+			dos.writeUTF(classname);
+			dos.writeInt(bytecode.length);
+			dos.write(bytecode);
+		}
+		dos.flush();
+		dir.put(key, contents.toByteArray());
+	}
+
+	/** Remove an entry, for example one whose classes could not be loaded.
+	 * @param key the key computed by {@link #key(Prototype, String, String, boolean)}
+	 */
+	public void remove(String key) {
+		dir.remove(key);
+	}
+}
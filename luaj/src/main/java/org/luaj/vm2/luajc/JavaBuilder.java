@@ -40,17 +40,23 @@ import org.apache.bcel.generic.FieldGen;
 import org.apache.bcel.generic.GOTO;
 import org.apache.bcel.generic.IFEQ;
 import org.apache.bcel.generic.IFNE;
+import org.apache.bcel.generic.IF_ICMPEQ;
+import org.apache.bcel.generic.IF_ICMPGT;
+import org.apache.bcel.generic.IF_ICMPLT;
+import org.apache.bcel.generic.ILOAD;
 import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionConstants;
 import org.apache.bcel.generic.InstructionFactory;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.ISTORE;
 import org.apache.bcel.generic.LocalVariableGen;
 import org.apache.bcel.generic.MethodGen;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.Type;
 import org.luaj.vm2.Buffer;
+import org.luaj.vm2.FieldSite;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaBoolean;
 import org.luaj.vm2.LuaInteger;
@@ -59,6 +65,7 @@ import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.ThreeArgFunction;
@@ -77,6 +84,9 @@ public class JavaBuilder {
 	private static final String STR_LUATABLE = LuaTable.class.getName();
 	private static final String STR_BUFFER = Buffer.class.getName();
 	private static final String STR_STRING = String.class.getName();
+	private static final String STR_UPVALUE = UpValue.class.getName();
+	private static final String STR_FIELDSITE = FieldSite.class.getName();
+	private static final String STR_PROTOTYPE = Prototype.class.getName();
 	private static final String STR_JSEPLATFORM = "org.luaj.org.vm2.lib.jse.JsePlatform";
 
 	private static final ObjectType TYPE_VARARGS = new ObjectType(STR_VARARGS);
@@ -88,6 +98,9 @@ public class JavaBuilder {
 	private static final ObjectType TYPE_LUATABLE = new ObjectType(STR_LUATABLE);
 	private static final ObjectType TYPE_BUFFER = new ObjectType(STR_BUFFER);
 	private static final ObjectType TYPE_STRING = new ObjectType(STR_STRING);
+	private static final ObjectType TYPE_UPVALUE = new ObjectType(STR_UPVALUE);
+	private static final ObjectType TYPE_FIELDSITE = new ObjectType(STR_FIELDSITE);
+	private static final ArrayType TYPE_PROTOTYPEARRAY = new ArrayType(new ObjectType(STR_PROTOTYPE), 1);
 	
 	private static final ArrayType TYPE_LOCALUPVALUE = new ArrayType( TYPE_LUAVALUE, 1 );
 	private static final ArrayType TYPE_CHARARRAY = new ArrayType( Type.CHAR, 1 );
@@ -105,6 +118,7 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_INT =  { Type.INT };
 	private static final Type[] ARG_TYPES_DOUBLE = { Type.DOUBLE };
 	private static final Type[] ARG_TYPES_STRING = { Type.STRING };
+	private static final Type[] ARG_TYPES_LUASTRING = { TYPE_LUASTRING };
 	private static final Type[] ARG_TYPES_CHARARRAY = { TYPE_CHARARRAY };
 	private static final Type[] ARG_TYPES_INT_LUAVALUE = { Type.INT, TYPE_LUAVALUE };
 	private static final Type[] ARG_TYPES_INT_VARARGS = { Type.INT, TYPE_VARARGS };
@@ -117,9 +131,16 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE = { TYPE_LUAVALUE, TYPE_LUAVALUE };
 	private static final Type[] ARG_TYPES_INT_INT = { Type.INT, Type.INT };
 	private static final Type[] ARG_TYPES_LUAVALUE = { TYPE_LUAVALUE };
+	private static final Type[] ARG_TYPES_LUAVALUE_INT = { TYPE_LUAVALUE, Type.INT };
 	private static final Type[] ARG_TYPES_BUFFER = { TYPE_BUFFER };
 	private static final Type[] ARG_TYPES_STRINGARRAY = { TYPE_STRINGARRAY };
 	private static final Type[] ARG_TYPES_LUAVALUE_STRINGARRAY = { TYPE_LUAVALUE, TYPE_STRINGARRAY };
+	private static final Type[] ARG_TYPES_UPVALUEARRAY_PROTOTYPE_LUAVALUE = { new ArrayType( TYPE_UPVALUE, 1 ), new ObjectType(STR_PROTOTYPE), TYPE_LUAVALUE };
+	private static final Type[] ARG_TYPES_LUAVALUEARRAY_INT = { new ArrayType( TYPE_LUAVALUE, 1 ), Type.INT };
+
+	// prefixes for int locals of numeric for loops
+	private static final String PREFIX_FORINDEX = "i";
+	private static final String PREFIX_FORLIMIT = "n";
 
 	// names, arg types for main prototype classes
 	private static final String[]     SUPER_NAME_N   = { STR_FUNC0, STR_FUNC1, STR_FUNC2, STR_FUNC3, STR_FUNCV, };
@@ -132,9 +153,14 @@ public class JavaBuilder {
 	
 	// varable naming
 	private static final String PREFIX_CONSTANT     = "k";
+	private static final String PREFIX_FIELDSITE    = "f";
 	private static final String PREFIX_UPVALUE      = "u";
 	private static final String PREFIX_PLAIN_SLOT   = "s";
 	private static final String PREFIX_UPVALUE_SLOT = "a";
+	
+	// fields of a prototype compiled on its own, set when its class is loaded and instantiated
+	static final String FIELD_PROTOTYPES = "prototypes";
+	static final String FIELD_GLOBALS    = "globals";
 	private static final String NAME_VARRESULT      = "v";
 	
 	// basic info
@@ -198,11 +224,14 @@ public class JavaBuilder {
 
 		// create the fields
 		for ( int i=0; i<p.upvalues.length; i++ ) {
-			boolean isrw = pi.isReadWriteUpvalue( pi.upvals[i] ); 
-			Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+			Type uptype = upvalueType( pi.upvals[i] );
 			FieldGen fg = new FieldGen(0, uptype, upvalueName(i), cp);
 			cg.addField(fg.getField());
 		}
+		if ( pi.shared ) {
+			cg.addField(new FieldGen(Constants.ACC_STATIC, TYPE_PROTOTYPEARRAY, FIELD_PROTOTYPES, cp).getField());
+			cg.addField(new FieldGen(0, TYPE_LUAVALUE, FIELD_GLOBALS, cp).getField());
+		}
 		
 		// create the method
 		mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
@@ -284,7 +313,7 @@ public class JavaBuilder {
 		main.dispose();
 
 		// add initupvalue1(LuaValue env) to initialize environment for main chunk 
-		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
+		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS && ! pi.isSharedUpvalue( pi.upvals[0] )) {
 			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
 					Type.VOID, // return type
 					ARG_TYPES_LUAVALUE, // argument types
@@ -433,14 +462,23 @@ public class JavaBuilder {
 		}
 	}
 	
-	private static String upvalueName(int upindex) {
+	static String upvalueName(int upindex) {
 		return PREFIX_UPVALUE+upindex;
 	}
 	
+	private Type upvalueType(UpvalInfo u) {
+		return pi.isSharedUpvalue( u )? (Type) TYPE_UPVALUE: 
+			pi.isReadWriteUpvalue( u )? (Type) TYPE_LOCALUPVALUE: 
+			(Type) TYPE_LUAVALUE;
+	}
+	
 	public void loadUpvalue(int upindex) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConstants.THIS);
-		if ( isrw ) {
+		if ( pi.isSharedUpvalue( pi.upvals[upindex] ) ) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			append(factory.createInvoke(STR_UPVALUE, "getValue", TYPE_LUAVALUE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+		} else if ( isrw ) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp,0));
 			append(InstructionConstants.AALOAD);
@@ -452,7 +490,11 @@ public class JavaBuilder {
 	public void storeUpvalue(int pc, int upindex, int slot) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConstants.THIS);
-		if ( isrw ) {
+		if ( pi.isSharedUpvalue( pi.upvals[upindex] ) ) {
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+			loadLocal(pc, slot);
+			append(factory.createInvoke(STR_UPVALUE, "setValue", Type.VOID, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+		} else if ( isrw ) {
 			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
 			append(new PUSH(cp,0));
 			loadLocal(pc, slot);
@@ -511,6 +553,31 @@ public class JavaBuilder {
         append(factory.createInvoke(STR_LUAVALUE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
 	
+	private int nfieldsites = 0;
+	
+	/** Index the value on the stack with a constant string key through an inline cache. 
+	 * @see FieldSite */
+	public void getField(LuaString key) {
+		String name = PREFIX_FIELDSITE+(nfieldsites++);
+		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, 
+				TYPE_FIELDSITE, name, cp);
+		cg.addField(fg.getField());
+		String kname = (String) constants.get(key);
+		if ( kname == null ) {
+			kname = createLuaStringField(key);
+			constants.put(key, kname);
+		}
+		init.append(factory.createNew(TYPE_FIELDSITE));
+		init.append(InstructionConstants.DUP);
+		init.append(factory.createGetStatic(classname, kname, TYPE_LUAVALUE));
+		init.append(factory.createCheckCast(TYPE_LUASTRING));
+		init.append(factory.createInvoke(STR_FIELDSITE, "<init>", Type.VOID, ARG_TYPES_LUASTRING, Constants.INVOKESPECIAL));
+		init.append(factory.createPutStatic(classname, name, TYPE_FIELDSITE));
+		append(factory.createGetStatic(classname, name, TYPE_FIELDSITE));
+		append(InstructionConstants.SWAP);
+		append(factory.createInvoke(STR_FIELDSITE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+	}
+	
 	public void setTable() {
         append(factory.createInvoke(STR_LUAVALUE, "set", Type.VOID, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
@@ -571,6 +638,73 @@ public class JavaBuilder {
 		append(factory.createInvoke(STR_LUAVALUE, "testfor_b", Type.BOOLEAN, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
 	}
 
+	// int index and limit of for loops, by pc of the OP_FORPREP
+	private Map<Integer,int[]> intForLoopVars = new HashMap<Integer,int[]>();
+	private BranchInstruction[] intForLoopJoins;
+	private int[] findIntForLoopVars( int preppc ) {
+		Integer ipc = Integer.valueOf(preppc);
+		if ( intForLoopVars.containsKey(ipc) )
+			return (int[]) intForLoopVars.get(ipc);
+		int[] v = {
+			mg.addLocalVariable(PREFIX_FORINDEX+preppc, Type.INT, null, null).getIndex(),
+			mg.addLocalVariable(PREFIX_FORLIMIT+preppc, Type.INT, null, null).getIndex(),
+		};
+		intForLoopVars.put(ipc, v);
+		return v;
+	}
+
+	/** Initialize the int index and limit of a for loop whose initial value and step are int constants.
+	 * The index is set to the initial value minus the step, and the limit to
+	 * {@link org.luaj.vm2.lib.LibFunction#forlimit(LuaValue, int)} of R(A+1).
+	 */
+	public void prepareIntForLoop(int pc, int a, int init, int step) {
+		int[] v = findIntForLoopVars(pc);
+		loadLocal(pc, a+1);
+		append(new PUSH(cp, step));
+		append(factory.createInvoke(classname, "forlimit", Type.INT, ARG_TYPES_LUAVALUE_INT, Constants.INVOKESTATIC));
+		append(new ISTORE(v[1]));
+		append(new PUSH(cp, init - step));
+		append(new ISTORE(v[0]));
+	}
+
+	/** Begin the test of a for loop prepared by {@link #prepareIntForLoop(int, int, int, int)}.
+	 * When the limit is an int the loop runs on the int index, storing R(A+3) as the LuaValue code
+	 * does, and leaving the result of the test on the stack.  Otherwise control goes to the LuaValue code that follows,
+	 * up to {@link #endIntForLoop()}.
+	 */
+	public void beginIntForLoop(int pc, int preppc, int a, int step) {
+		int[] v = findIntForLoopVars(preppc);
+		append(new ILOAD(v[1]));
+		append(new PUSH(cp, step > 0? Integer.MAX_VALUE: Integer.MIN_VALUE));
+		BranchInstruction generic = new IF_ICMPEQ(null);
+		append(generic);
+		append(new ILOAD(v[0]));
+		append(new PUSH(cp, step));
+		append(InstructionConstants.IADD);
+		append(InstructionConstants.DUP);
+		append(new ISTORE(v[0]));
+		append(factory.createInvoke(STR_LUAINTEGER, "valueOf", TYPE_LUAINTEGER, ARG_TYPES_INT, Constants.INVOKESTATIC));
+		storeLocal(pc, a+3);
+		append(new ILOAD(v[0]));
+		append(new ILOAD(v[1]));
+		BranchInstruction done = step > 0? (BranchInstruction) new IF_ICMPGT(null): new IF_ICMPLT(null);
+		append(done);
+		append(InstructionConstants.ICONST_1);
+		intForLoopJoins = new BranchInstruction[] { new GOTO(null), new GOTO(null) };
+		append(intForLoopJoins[0]);
+		done.setTarget(main.append(InstructionConstants.ICONST_0));
+		append(intForLoopJoins[1]);
+		generic.setTarget(main.append(InstructionConstants.NOP));
+	}
+
+	/** End the LuaValue code of a for loop test begun with {@link #beginIntForLoop(int, int, int, int)}. */
+	public void endIntForLoop() {
+		InstructionHandle join = main.append(InstructionConstants.NOP);
+		intForLoopJoins[0].setTarget(join);
+		intForLoopJoins[1].setTarget(join);
+		intForLoopJoins = null;
+	}
+
 	public void loadArrayArgs(int pc, int firstslot, int nargs) {
 		append(new PUSH(cp, nargs));
 		append(new ANEWARRAY(cp.addClass(STR_LUAVALUE)));
@@ -642,8 +776,7 @@ public class JavaBuilder {
 	}
 
 	public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
-		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+		Type uptype = upvalueType( pi.upvals[upindex] );
 		String srcname = upvalueName(upindex);
 		String destname = upvalueName(newup);
 		append(InstructionConstants.THIS);
@@ -660,6 +793,42 @@ public class JavaBuilder {
 		append(factory.createFieldAccess(protoname, destname, uptype, Constants.PUTFIELD));
 	}
 	
+	/** Create an interpreted closure of an inner prototype, leaving its upvalue array on the stack 
+	 * when it has upvalues, for a prototype compiled on its own which has no inner classes.  
+	 * The closure switches to the class of the inner prototype once that is compiled. */
+	public void closureCreateShared(int bx, int nup) {
+		append(new PUSH(cp, nup));
+		append(new ANEWARRAY(cp.addClass(STR_UPVALUE)));
+		if ( nup > 0 )
+			append(InstructionConstants.DUP);
+		append(factory.createGetStatic(classname, FIELD_PROTOTYPES, TYPE_PROTOTYPEARRAY));
+		append(new PUSH(cp, bx));
+		append(InstructionConstants.AALOAD);
+		append(InstructionConstants.THIS);
+		append(factory.createFieldAccess(classname, FIELD_GLOBALS, TYPE_LUAVALUE, Constants.GETFIELD));
+		append(factory.createInvoke(classname, "newclosure", TYPE_LUAVALUE, ARG_TYPES_UPVALUEARRAY_PROTOTYPE_LUAVALUE, Constants.INVOKESTATIC));
+	}
+
+	public void closureSharedUpvalueFromUpvalue(int newup, int upindex) {
+		append(new PUSH(cp, newup));
+		append(InstructionConstants.THIS);
+		append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Constants.GETFIELD));
+		append(InstructionConstants.AASTORE);
+	}
+
+	public void closureSharedUpvalueFromLocal(int newup, int pc, int srcslot) {
+		boolean isrw = pi.isReadWriteUpvalue( pi.vars[srcslot][pc].upvalue ); 
+		append(new PUSH(cp, newup));
+		append(factory.createNew(TYPE_UPVALUE));
+		append(InstructionConstants.DUP);
+		append(new ALOAD(findSlotIndex( srcslot, isrw )));
+		if ( ! isrw )
+			append(factory.createInvoke(classname, "newupl", TYPE_LOCALUPVALUE,  ARG_TYPES_LUAVALUE, Constants.INVOKESTATIC));
+		append(new PUSH(cp, 0));
+		append(factory.createInvoke(STR_UPVALUE, Constants.CONSTRUCTOR_NAME, Type.VOID, ARG_TYPES_LUAVALUEARRAY_INT, Constants.INVOKESPECIAL));
+		append(InstructionConstants.AASTORE);
+	}
+	
 	private Map<LuaValue,String> constants = new HashMap<LuaValue,String>();
 	
 	public void loadConstant(LuaValue value) {
@@ -23,6 +23,7 @@ package org.luaj.vm2.luajc;
 
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaString;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
 
@@ -37,12 +38,23 @@ public class JavaGen {
 	public final byte[] bytecode;
 	public final JavaGen[] inners;
 	
+	private final boolean inlinecaches;
+	
 	public JavaGen( Prototype p, String classname, String filename, boolean genmain ) {
-		this( new ProtoInfo(p,classname), classname, filename, genmain );
+		this( p, classname, filename, genmain, false );
+	}
+	
+	/** 
+	 * @param inlinecaches true to look up constant string keys through a {@link org.luaj.vm2.FieldSite} 
+	 * per instruction, false for a virtual call of {@link org.luaj.vm2.LuaValue#get(org.luaj.vm2.LuaValue)}
+	 */
+	public JavaGen( Prototype p, String classname, String filename, boolean genmain, boolean inlinecaches ) {
+		this( new ProtoInfo(p,classname), classname, filename, genmain, inlinecaches );
 	}
 	
-	private JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain ) {
+	JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain, boolean inlinecaches ) {
 		this.classname = classname;
+		this.inlinecaches = inlinecaches;
 		
 		// build this class
 		JavaBuilder builder = new JavaBuilder(pi, classname, filename);
@@ -53,12 +65,12 @@ public class JavaGen {
 		}
 		this.bytecode = builder.completeClass(genmain);
 		
-		// build sub-prototypes
-		if ( pi.subprotos != null ) {
+		// build sub-prototypes, except for a prototype compiled on its own
+		if ( pi.subprotos != null && ! pi.shared ) {
 			int n = pi.subprotos.length;
 			inners = new JavaGen[n];
 			for ( int i=0; i<n; i++ )
-				inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false);
+				inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false, inlinecaches);
 		} else {
 			inners = null;
 		}
@@ -90,6 +102,7 @@ public class JavaGen {
 				int bx = Lua.GETARG_Bx(ins);
 				int sbx = Lua.GETARG_sBx(ins);
 				int c = Lua.GETARG_C(ins);
+				int[] forloop;
 	
 				switch ( o ) {	
 				case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
@@ -135,15 +148,13 @@ public class JavaGen {
 					
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
 					builder.loadUpvalue( b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, pc, c );
 					builder.storeLocal( pc, a );
 					break;
 
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
 					builder.loadLocal( pc, b );
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, pc, c );
 					builder.storeLocal( pc, a );
 					break;
 					
@@ -177,8 +188,7 @@ public class JavaGen {
 					builder.loadLocal(pc,b);
 					builder.dup();
 					builder.storeLocal(pc, a+1);
-					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, pc, c );
 					builder.storeLocal(pc, a);
 					break;
 					
@@ -333,10 +343,14 @@ public class JavaGen {
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( Lua.OP_SUB );
 					builder.storeLocal(pc, a);
+					if ( (forloop = pi.findIntegerForLoop(pc)) != null )
+						builder.prepareIntForLoop(pc, a, forloop[0], forloop[1]);
 					builder.addBranch(pc, JavaBuilder.BRANCH_GOTO, pc+1+sbx);
 					break;
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if ( (forloop = pi.findIntegerForLoop(pc+sbx)) != null )
+						builder.beginIntForLoop(pc, pc+sbx, a, forloop[1]);
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( Lua.OP_ADD );
@@ -347,6 +361,8 @@ public class JavaGen {
 					builder.loadLocal(pc, a+1); // limit
 					builder.loadLocal(pc, a+2); // step
 					builder.testForLoop();
+					if ( forloop != null )
+						builder.endIntForLoop();
 					builder.addBranch(pc, JavaBuilder.BRANCH_IFNE, pc+1+sbx);
 					break;
 				
@@ -391,6 +407,20 @@ public class JavaGen {
 				{
 					Prototype newp = p.p[bx];
 					int nup = newp.upvalues.length;
+					if ( pi.shared ) {
+						builder.closureCreateShared( bx, nup );
+						builder.storeLocal( pc, a );
+						for ( int up=0; up<nup; ++up ) {
+							if ( up+1 < nup )
+								builder.dup();
+							Upvaldesc u = newp.upvalues[up];
+							if (u.instack)
+								builder.closureSharedUpvalueFromLocal( up, pc, u.idx );
+							else
+								builder.closureSharedUpvalueFromUpvalue( up, u.idx );
+						}
+						break;
+					}
 					String protoname = pi.subprotos[bx].name;
 					builder.closureCreate( protoname );
 					if ( nup > 0 )
@@ -438,6 +468,15 @@ public class JavaGen {
 		}
 	}
 
+	private void getTable(Prototype p, JavaBuilder builder, int pc, int c) {
+		if ( inlinecaches && c>0xff && p.k[c&0xff] instanceof LuaString ) {
+			builder.getField( (LuaString) p.k[c&0xff] );
+		} else {
+			loadLocalOrConstant( p, builder, pc, c );
+			builder.getTable();
+		}
+	}
+	
 	private void loadLocalOrConstant(Prototype p, JavaBuilder builder, int pc, int borc) {
 		if ( borc<=0xff )
 			builder.loadLocal( pc, borc );
@@ -1,6 +1,7 @@
 package org.luaj.vm2.luajc;
 
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
 
 import org.luaj.vm2.LuaFunction;
@@ -63,6 +64,10 @@ public class JavaLoader extends ClassLoader {
 			include( jg.inners[i] );
 	}
 
+	public void include( Hashtable classes ) {
+		unloaded.putAll( classes );
+	}
+
 	public Class findClass(String classname) throws ClassNotFoundException {
 		byte[] bytes = (byte[]) unloaded.get(classname);
 		if ( bytes != null )
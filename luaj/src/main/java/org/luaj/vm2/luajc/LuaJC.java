@@ -21,16 +21,23 @@
 ******************************************************************************/
 package org.luaj.vm2.luajc;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.lang.reflect.Field;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
 import org.luaj.vm2.compiler.LuaC;
 
 /**
@@ -56,16 +63,41 @@ import org.luaj.vm2.compiler.LuaC;
  * This requires the bcel library to be on the class path to work as expected.  
  * If the library is not found, the default {@link LuaC} lua-to-lua-bytecode 
  * compiler will be used.  
+ * <p>
+ * Table lookups with a constant string key, such as global names and fields, 
+ * go through a {@link org.luaj.vm2.FieldSite} inline cache held by the generated class.  
+ * Calls and arithmetic are plain virtual calls, which the Java VM profiles and 
+ * inlines per call site.  {@link #plain} generates plain lookups as well. 
+ * <p>
+ * To avoid blocking the caller while classes are generated, 
+ * {@link #installInBackground(Globals)} or {@link #loadInBackground(Prototype, String, LuaValue)} 
+ * return a function at once that runs in the interpreter.  The classes are generated 
+ * on a bounded {@link ForkJoinPool}, one task per prototype so that nested functions 
+ * are compiled in parallel, and each closure switches to its compiled class 
+ * on its first call after the class is ready.
+ * <p>
+ * To generate the classes of a script once rather than on every start of the process, 
+ * {@link #install(Globals, File, long)} keeps them in a {@link ClassCache} directory
+ * of limited size.
  * 
  * @see Globals#compiler
  * @see #install(Globals)
+ * @see #installInBackground(Globals)
+ * @see ClassCache
  * @see org.luaj.vm2.compiler.LuaC
  * @see LuaValue
  */
 public class LuaJC implements Globals.Loader {
 	
+	/** Compiler whose generated code looks up constant string keys through inline caches */
 	public static final LuaJC instance = new LuaJC();
 	
+	/** Compiler whose generated code looks up every key with a virtual call of {@link LuaValue#get(LuaValue)} */
+	public static final LuaJC plain = new LuaJC(false);
+	
+	private final boolean inlinecaches;
+	private final ClassCache cache;
+	
 	/** 
 	 * Install the compiler as the main Globals.Loader to use in a set of globals. 
 	 * Will fall back to the LuaC prototype compiler.
@@ -74,16 +106,74 @@ public class LuaJC implements Globals.Loader {
 		G.loader = instance; 
 	}
 	
-	protected LuaJC() {}
+	/** 
+	 * Install the compiler as the main Globals.Loader, keeping the generated classes 
+	 * in a cache directory from which later processes load them instead of compiling.
+	 * The cache is limited to {@link ClassCache#DEFAULT_MAX_BYTES}.
+	 * @param cachedir the directory of the {@link ClassCache}
+	 */
+	public static final void install(Globals G, File cachedir) {
+		G.loader = new LuaJC(true, new ClassCache(cachedir)); 
+	}
+	
+	/** 
+	 * Install the compiler as the main Globals.Loader, keeping the generated classes 
+	 * in a cache directory from which later processes load them instead of compiling.
+	 * @param cachedir the directory of the {@link ClassCache}
+	 * @param maxBytes the total size of cache entries above which the least recently used are deleted
+	 */
+	public static final void install(Globals G, File cachedir, long maxBytes) {
+		G.loader = new LuaJC(true, new ClassCache(cachedir, maxBytes)); 
+	}
+	
+	/** 
+	 * Install a Globals.Loader that returns interpreted functions at once 
+	 * and compiles them in the background with {@link #loadInBackground(Prototype, String, LuaValue)}.
+	 */
+	public static final void installInBackground(Globals G) {
+		G.loader = new Globals.Loader() {
+			public LuaFunction load(Prototype p, String name, LuaValue globals) {
+				return instance.loadInBackground(p, name, globals);
+			}
+		};
+	}
+	
+	protected LuaJC() {
+		this(true);
+	}
+	
+	/** 
+	 * @param inlinecaches true to generate a {@link org.luaj.vm2.FieldSite} for each lookup 
+	 * with a constant string key, false to generate a plain {@link LuaValue#get(LuaValue)}
+	 */
+	protected LuaJC(boolean inlinecaches) {
+		this(inlinecaches, null);
+	}
+	
+	/** 
+	 * @param inlinecaches true to generate a {@link org.luaj.vm2.FieldSite} for each lookup 
+	 * with a constant string key, false to generate a plain {@link LuaValue#get(LuaValue)}
+	 * @param cache cache of generated classes used by {@link #load(Prototype, String, LuaValue)}, or null
+	 */
+	protected LuaJC(boolean inlinecaches, ClassCache cache) {
+		this.inlinecaches = inlinecaches;
+		this.cache = cache;
+	}
 
+	/** 
+	 * Compile a script to java classes, one package per directory of the chunk name, 
+	 * so that {@code "util/strings"} becomes the class {@code util.strings} that 
+	 * {@link org.luaj.vm2.lib.PackageLib} finds for {@code require "util.strings"}.
+	 * @return Hashtable of class name to bytecode
+	 */
 	public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain) throws IOException {
-		final String classname = toStandardJavaClassName( chunkname );
+		final String classname = toPackagedJavaClassName( chunkname );
 		final Prototype p = globals.loadPrototype(script, classname, "bt");
 		return compileProtoAndSubProtos(p, classname, filename, genmain);
 	}
 	
 	public Hashtable compileAll(Reader script, String chunkname, String filename, Globals globals, boolean genmain) throws IOException {
-		final String classname = toStandardJavaClassName( chunkname );
+		final String classname = toPackagedJavaClassName( chunkname );
 		final Prototype p = globals.compilePrototype(script, classname);
 		return compileProtoAndSubProtos(p, classname, filename, genmain);
 	}
@@ -91,7 +181,7 @@ public class LuaJC implements Globals.Loader {
 	private Hashtable compileProtoAndSubProtos(Prototype p, String classname, String filename, boolean genmain) throws IOException {
 		final String luaname = toStandardLuaFileName( filename );
 		final Hashtable h = new Hashtable();
-		final JavaGen gen = new JavaGen(p, classname, luaname, genmain);
+		final JavaGen gen = new JavaGen(p, classname, luaname, genmain, inlinecaches);
 		insert( h, gen );
 		return h;
 	}
@@ -106,10 +196,157 @@ public class LuaJC implements Globals.Loader {
 		String luaname = toStandardLuaFileName( name );
 		String classname = toStandardJavaClassName( luaname );
 		JavaLoader loader = new JavaLoader();
-		return loader.load(p, classname, luaname, globals);
+		if ( cache == null )
+			return loader.load(new JavaGen(p, classname, luaname, false, inlinecaches), globals);
+		String key = cache.key(p, classname, luaname, inlinecaches);
+		Hashtable h = cache.get(key);
+		if ( h != null ) {
+			try {
+				loader.include(h);
+				for ( Enumeration e = h.keys(); e.hasMoreElements(); )
+					Class.forName((String) e.nextElement(), true, loader);
+				return loader.load(classname, globals);
+			} catch ( ClassNotFoundException e ) {
+				// entry without the class it names
+			} catch ( LinkageError e ) {
+				// corrupt bytecode, such as a ClassFormatError or VerifyError
+			}
+			// drop the entry and generate the classes again
+			cache.remove(key);
+			loader = new JavaLoader();
+		}
+		h = new Hashtable();
+		insert( h, new JavaGen(p, classname, luaname, false, inlinecaches) );
+		try {
+			cache.put(key, h);
+		} catch ( IOException e ) {
+			// cache not writable: use the classes without keeping them
+		}
+		loader.include(h);
+		return loader.load(classname, globals);
 	}
 	
-	private static String toStandardJavaClassName( String luachunkname ) {
+	/**
+	 * Return an interpreted function for a prototype at once, and generate classes 
+	 * for the prototype and each of its nested prototypes in the background.  
+	 * Closures created before their class is ready, including the returned function, 
+	 * switch to the compiled class on their next call.  
+	 * A prototype that cannot be compiled stays interpreted.
+	 * @param p the prototype of the main chunk
+	 * @param name the chunk name
+	 * @param globals the environment of the main chunk
+	 * @return the function, initially a {@link LuaClosure}
+	 */
+	public LuaFunction loadInBackground(Prototype p, String name, LuaValue globals) {
+		String luaname = toStandardLuaFileName( name );
+		String classname = toStandardJavaClassName( luaname );
+		pending(p);
+		pool().execute(new CompileTask(p, classname, luaname));
+		return new LuaClosure(p, globals);
+	}
+	
+	/** Tier of prototypes waiting for a class, which are never promoted by call counts */
+	private static final Prototype.Tier PENDING = new Prototype.Tier() {
+		public void promote(Prototype p) {
+		}
+	};
+	
+	private static void pending(Prototype p) {
+		if ( p.tier == null )
+			p.tier = PENDING;
+		for ( int i=0, n=p.p!=null? p.p.length: 0; i<n; i++ )
+			pending(p.p[i]);
+	}
+	
+	private static ForkJoinPool pool;
+	
+	/** Pool for background compiles, leaving one processor to the threads running lua */
+	private static synchronized ForkJoinPool pool() {
+		if ( pool == null )
+			pool = new ForkJoinPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+		return pool;
+	}
+	
+	/** Compiles the class of one prototype, in parallel with tasks for its nested prototypes */
+	private static final class CompileTask extends RecursiveAction {
+		private final Prototype p;
+		private final String classname;
+		private final String filename;
+		
+		CompileTask(Prototype p, String classname, String filename) {
+			this.p = p;
+			this.classname = classname;
+			this.filename = filename;
+		}
+		
+		protected void compute() {
+			int n = p.p!=null? p.p.length: 0;
+			CompileTask[] inner = new CompileTask[n];
+			for ( int i=0; i<n; i++ )
+				inner[i] = (CompileTask) new CompileTask(p.p[i], classname+"_"+p.p[i].linedefined, filename).fork();
+			p.compiled = compileShared(p, classname, filename);
+			for ( int i=0; i<n; i++ )
+				inner[i].join();
+		}
+	}
+	
+	/** 
+	 * Generate and load a class for a prototype on its own, whose upvalues are 
+	 * the {@link UpValue}s of the interpreted closure it replaces.  
+	 * No classes are generated for nested prototypes: the class creates interpreted 
+	 * closures of them, which switch to their own compiled classes once there are any.
+	 * @return the compiled code, or null if the prototype could not be compiled
+	 */
+	static Prototype.Compiled compileShared(Prototype p, String classname, String filename) {
+		try {
+			JavaGen gen = new JavaGen( new ProtoInfo(p, classname, true), classname, filename, false, true );
+			JavaLoader loader = new JavaLoader();
+			loader.include( gen );
+			return new SharedClass( loader.loadClass( gen.classname ), p );
+		} catch ( Exception e ) {
+			// code the generator cannot handle: keep interpreting
+			return null;
+		} catch ( LinkageError e ) {
+			// missing bcel, or a class that does not verify: keep interpreting
+			return null;
+		}
+	}
+	
+	/** Class compiled from a prototype, instantiated once for each closure that switches to it */
+	private static final class SharedClass implements Prototype.Compiled {
+		private final Class c;
+		private final Field[] upvalues;
+		private final Field globals;
+		
+		SharedClass(Class c, Prototype p) throws NoSuchFieldException, IllegalAccessException {
+			this.c = c;
+			int nup = p.upvalues.length;
+			this.upvalues = new Field[nup];
+			for ( int i=0; i<nup; i++ ) {
+				upvalues[i] = c.getDeclaredField( JavaBuilder.upvalueName(i) );
+				upvalues[i].setAccessible(true);
+			}
+			Field prototypes = c.getDeclaredField( JavaBuilder.FIELD_PROTOTYPES );
+			prototypes.setAccessible(true);
+			prototypes.set(null, p.p);
+			globals = c.getDeclaredField( JavaBuilder.FIELD_GLOBALS );
+			globals.setAccessible(true);
+		}
+		
+		public LuaFunction bind(UpValue[] up, LuaValue g) {
+			try {
+				LuaFunction f = (LuaFunction) c.newInstance();
+				for ( int i=0; i<upvalues.length; i++ )
+					upvalues[i].set(f, up[i]);
+				globals.set(f, g);
+				return f;
+			} catch ( Exception e ) {
+				throw new LuaError("bad class gen: "+e);
+			}
+		}
+	}
+	
+	static String toStandardJavaClassName( String luachunkname ) {
 		String stub = toStub( luachunkname );
 		StringBuffer classname = new StringBuffer();
 		for (int i = 0, n = stub.length(); i < n; ++i) {
@@ -119,7 +356,20 @@ public class LuaJC implements Globals.Loader {
 		return classname.toString();
 	}
 	
-	private static String toStandardLuaFileName( String luachunkname ) {
+	static String toPackagedJavaClassName( String luachunkname ) {
+		String[] parts = toStub( luachunkname ).replace('\\','/').split("/");
+		StringBuffer classname = new StringBuffer();
+		for (int i = 0; i < parts.length; ++i) {
+			if (parts[i].length() == 0)
+				continue;
+			if (classname.length() > 0)
+				classname.append('.');
+			classname.append(toStandardJavaClassName(parts[i]));
+		}
+		return classname.toString();
+	}
+	
+	static String toStandardLuaFileName( String luachunkname ) {
 		String stub = toStub( luachunkname );
 		String filename = stub.replace('.','/')+".lua";
 		return filename.startsWith("@")? filename.substring(1): filename;
@@ -5,7 +5,9 @@ import java.io.PrintStream;
 import java.util.Hashtable;
 
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
@@ -24,17 +26,30 @@ public class ProtoInfo {
 	public final VarInfo[][] vars;        // Each variable
 	public final UpvalInfo[] upvals;      // from outer scope
 	public final UpvalInfo[][] openups;   // per slot, upvalues allocated by this prototype
+	public final boolean shared;          // compiled on its own, closures it creates are interpreted until compiled
 	
 	// A main chunk proto info.
 	public ProtoInfo(Prototype p, String name) {
 		// For the outer chunk, we have one upvalue which is the environment.
-		this(p,name,null);
+		this(p,name,null,false);
 	}
 	
-	private ProtoInfo(Prototype p, String name, UpvalInfo[] u) {
+	// A prototype compiled on its own, whose upvalues are shared with interpreted closures.
+	ProtoInfo(Prototype p, String name, boolean shared) {
+		this(p,name,shared? new UpvalInfo[p.upvalues.length]: null,shared);
+	}
+	
+	private ProtoInfo(Prototype p, String name, UpvalInfo[] u, boolean shared) {
 		this.name = name;
+		this.shared = shared;
 		this.prototype = p;
 		this.upvals = u != null? u: new UpvalInfo[] { new UpvalInfo(this) };
+		for ( int i=0; i<upvals.length; i++ ) {
+			if ( upvals[i] == null ) {
+				upvals[i] = new UpvalInfo(this);
+				upvals[i].shared = true;
+			}
+		}
 		this.subprotos = p.p!=null&&p.p.length>0? new ProtoInfo[p.p.length]: null;
 		
 		// find basic blocks
@@ -424,7 +439,7 @@ public class ProtoInfo {
 					Upvaldesc u = newp.upvalues[j];
 					newu[j] = u.instack? findOpenUp(pc,u.idx) : upvals[u.idx];
 				}
-				subprotos[bx] = new ProtoInfo(newp, newname, newu);
+				subprotos[bx] = new ProtoInfo(newp, newname, newu, false);
 			}
 		}
 		
@@ -473,6 +488,40 @@ public class ProtoInfo {
 		return u.rw;
 	}
 	
+	public boolean isSharedUpvalue(UpvalInfo u) {
+		return u.shared;
+	}
+
+	/** Find the initial value and step of a numeric for loop that are both integer constants.
+	 * @param pc the pc of the OP_FORPREP instruction
+	 * @return { initial value, step } if both are proven to be loaded by OP_LOADK of an integer constant,
+	 * the step is not zero, and the initial value minus the step is an int, or null otherwise
+	 */
+	public int[] findIntegerForLoop(int pc) {
+		int ins = prototype.code[pc];
+		if ( Lua.GET_OPCODE(ins) != Lua.OP_FORPREP || blocks[pc].pc0 >= pc )
+			return null;
+		int a = Lua.GETARG_A(ins);
+		LuaValue init = findIntegerConstant(vars[a][pc-1], a);
+		LuaValue step = findIntegerConstant(vars[a+2][pc], a+2);
+		if ( init == null || step == null || step.toint() == 0 )
+			return null;
+		long start = (long) init.toint() - step.toint();
+		if ( start != (int) start )
+			return null;
+		return new int[] { init.toint(), step.toint() };
+	}
+
+	private LuaValue findIntegerConstant(VarInfo v, int slot) {
+		if ( v == null || v.pc < 0 || v.isPhiVar() )
+			return null;
+		int ins = prototype.code[v.pc];
+		if ( Lua.GET_OPCODE(ins) != Lua.OP_LOADK || Lua.GETARG_A(ins) != slot )
+			return null;
+		LuaValue k = prototype.k[Lua.GETARG_Bx(ins)];
+		return k instanceof LuaInteger? k: null;
+	}
+
 	private String[] findInnerprotoNames() {
 		if (prototype.p.length <= 0)
 			return null;
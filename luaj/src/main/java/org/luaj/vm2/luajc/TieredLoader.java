@@ -0,0 +1,129 @@
+/*******************************************************************************
+* Copyright (c) 2010 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.UpValue;
+
+/**
+ * Implementation of {@link org.luaj.vm2.Globals.Loader} which interprets lua bytecode
+ * first, and compiles only the functions that run often to java bytecode with {@link LuaJC}.
+ * <p>
+ * Each {@link Prototype} counts the calls of its closures and the iterations of its loops.
+ * When the count reaches the threshold, the prototype is compiled on the executor,
+ * a single background thread by default, and the interpreter keeps running meanwhile.
+ * Once the class is ready, every closure of the prototype, including those already created,
+ * switches to the compiled function on its next call.  A call already running in the
+ * interpreter finishes there.
+ * <p>
+ * The compiled function shares the {@link UpValue}s of the closure it replaces,
+ * so assignments to upvalues are seen by interpreted and compiled code alike.
+ * Functions defined inside a compiled function start out interpreted, 
+ * and are compiled on their own once they run often.
+ * <p>
+ * To install, for example:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * TieredLoader.install(globals);
+ * globals.load("for i=1,1e6 do end", "main.lua").call();
+ * } </pre>
+ * <p>
+ * This requires the bcel library to be on the class path.
+ * If a prototype cannot be compiled, its closures keep running in the interpreter.
+ *
+ * @see Globals#loader
+ * @see LuaJC
+ * @see Prototype#tier
+ */
+public class TieredLoader implements Globals.Loader, Prototype.Tier {
+
+	/** Default number of calls and loop iterations after which a prototype is compiled */
+	public static final int DEFAULT_THRESHOLD = 10000;
+
+	/** Executor running compilation on one daemon thread, shared by default by all tiered loaders */
+	public static final Executor BACKGROUND = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "luajc-tiered");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final int threshold;
+	private final Executor executor;
+	private final Map promoted = Collections.synchronizedMap(new WeakHashMap());
+
+	/**
+	 * Install a tiered loader with the default threshold as the Globals.Loader of a set of globals.
+	 */
+	public static final void install(Globals G) {
+		G.loader = new TieredLoader(DEFAULT_THRESHOLD, BACKGROUND);
+	}
+
+	/** Construct a tiered loader.
+	 * @param threshold number of calls and loop iterations after which a prototype is compiled
+	 * @param executor executor on which prototypes are compiled
+	 */
+	public TieredLoader(int threshold, Executor executor) {
+		this.threshold = Math.max(1, threshold);
+		this.executor = executor;
+	}
+
+	public LuaFunction load(Prototype p, String chunkname, LuaValue env) {
+		prepare(p);
+		return new LuaClosure(p, env);
+	}
+
+	private void prepare(Prototype p) {
+		p.tier = this;
+		p.hotcount = threshold;
+		for ( int i=0, n=p.p!=null? p.p.length: 0; i<n; i++ )
+			prepare(p.p[i]);
+	}
+
+	public void promote(final Prototype p) {
+		if ( promoted.put(p, Boolean.TRUE) != null )
+			return;
+		executor.execute(new Runnable() {
+			public void run() {
+				p.compiled = compile(p);
+			}
+		});
+	}
+
+	private static Prototype.Compiled compile(Prototype p) {
+		String luaname = LuaJC.toStandardLuaFileName( p.source != null? p.source.tojstring(): "?" );
+		String classname = LuaJC.toStandardJavaClassName( luaname ) + "_" + p.linedefined;
+		return LuaJC.compileShared( p, classname, luaname );
+	}
+}
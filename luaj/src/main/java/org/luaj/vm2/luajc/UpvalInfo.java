@@ -11,6 +11,7 @@ public class UpvalInfo {
 	int nvars;		// number of vars involved
 	VarInfo var[];	// list of vars
 	boolean rw;     // read-write
+	boolean shared; // held in an UpValue of an interpreted closure
 
 	// Upval info representing the implied context containing only the environment.
 	public UpvalInfo(ProtoInfo pi) {
@@ -0,0 +1,63 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+public class FieldCacheTest {
+
+	@Test
+	public void refillsOfOneTableDoNotMakeSiteMegamorphic() {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaClosure f = (LuaClosure) globals.load("return x", "site");
+		globals.set("x", LuaValue.valueOf(1));
+		for ( int i = 0; i < 200; i++ ) {
+			// defining globals, or here setting the metatable, changes the version
+			globals.set("g" + i, LuaValue.valueOf(i));
+			globals.setmetatable(new LuaTable());
+			assertEquals(1, f.call().toint());
+		}
+		FieldCache[] caches = f.p.fieldcaches;
+		for ( int i = 0; i < caches.length; i++ )
+			assertTrue(caches[i] != FieldCache.MEGAMORPHIC);
+	}
+
+	@Test
+	public void manyTablesMakeSiteMegamorphic() {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaClosure f = (LuaClosure) globals.load("local t = ... return t.x", "site");
+		for ( int i = 0; i <= FieldCache.MAX_MISSES; i++ ) {
+			LuaTable t = new LuaTable();
+			t.set("x", LuaValue.valueOf(i));
+			assertEquals(i, f.call(t).toint());
+		}
+		boolean megamorphic = false;
+		FieldCache[] caches = f.p.fieldcaches;
+		for ( int i = 0; i < caches.length; i++ )
+			megamorphic |= caches[i] == FieldCache.MEGAMORPHIC;
+		assertTrue(megamorphic);
+	}
+}
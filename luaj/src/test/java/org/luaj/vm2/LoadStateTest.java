@@ -0,0 +1,91 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+public class LoadStateTest {
+
+	private static final String SCRIPT =
+			"local t = { 'alpha', 'beta', 1.5, 7 }\n" +
+			"local function f(a, b) return a .. b .. #t end\n" +
+			"return f('x', 'y')\n";
+
+	private static byte[] dump() throws Exception {
+		Globals globals = JsePlatform.standardGlobals();
+		Prototype p = globals.compilePrototype(new java.io.StringReader(SCRIPT), "script");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DumpState.dump(p, baos, false);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void wholeChunkLoadsFromBuffer() throws Exception {
+		byte[] chunk = dump();
+		Globals globals = JsePlatform.standardGlobals();
+		Prototype p = LoadState.undump(ByteBuffer.wrap(chunk), "script");
+		assertEquals("xy4", new LuaClosure(p, globals).call().tojstring());
+	}
+
+	@Test
+	public void truncatedArrayBackedChunkRaisesEOFException() throws Exception {
+		byte[] chunk = dump();
+		for ( int cut = 0; cut < chunk.length; cut++ )
+			checkTruncated(ByteBuffer.wrap(Arrays.copyOf(chunk, cut)), cut);
+	}
+
+	@Test
+	public void truncatedDirectChunkRaisesEOFException() throws Exception {
+		byte[] chunk = dump();
+		for ( int cut = 0; cut < chunk.length; cut++ ) {
+			ByteBuffer direct = ByteBuffer.allocateDirect(cut);
+			direct.put(chunk, 0, cut).flip();
+			checkTruncated(direct, cut);
+		}
+	}
+
+	private static void checkTruncated(ByteBuffer buffer, int cut) throws Exception {
+		if ( cut < 4 ) {
+			assertNull(LoadState.undump(buffer, "script"));
+			return;
+		}
+		try {
+			LoadState.undump(buffer, "script");
+			fail("loaded a chunk cut at "+cut);
+		} catch ( EOFException e ) {
+			// expected
+		} catch ( RuntimeException e ) {
+			throw new AssertionError("chunk cut at "+cut+" raised "+e);
+		}
+	}
+}
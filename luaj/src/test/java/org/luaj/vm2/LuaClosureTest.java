@@ -0,0 +1,83 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+public class LuaClosureTest {
+
+	@Test
+	public void coroutineKeepsArgumentsAfterCallerReturns() {
+		Globals globals = JsePlatform.standardGlobals();
+		Varargs v = globals.load(
+				"local co = coroutine.wrap(function(...) coroutine.yield() return ... end)\n" +
+				"local function start() co(1, 2, 3, 4, 5) end\n" +
+				"start()\n" +
+				"local function churn(a, b, c, d, e) return a end\n" +
+				"for i = 1, 10 do churn(i, i, i, i, i) end\n" +
+				"return co()\n", "coroutine").invoke();
+		assertEquals(5, v.narg());
+		for ( int i = 1; i <= 5; i++ )
+			assertEquals(i, v.arg(i).toint());
+	}
+
+	@Test
+	public void javaFunctionKeepsArgumentsAfterCallerReturns() {
+		Globals globals = JsePlatform.standardGlobals();
+		final Varargs[] kept = new Varargs[1];
+		globals.set("keep", new VarArgFunction() {
+			public Varargs invoke(Varargs args) {
+				kept[0] = args;
+				return NONE;
+			}
+		});
+		globals.load(
+				"local function f(...) keep(...) end\n" +
+				"f('a', 'b', 'c', 'd')\n" +
+				"local function g(a, b, c, d) return a end\n" +
+				"g(1, 2, 3, 4)\n", "keep").call();
+		assertEquals(4, kept[0].narg());
+		assertEquals("a", kept[0].arg(1).tojstring());
+		assertEquals("d", kept[0].arg(4).tojstring());
+	}
+
+	@Test
+	public void numericForLoopsMixIntegersDoublesAndStrings() {
+		Globals globals = JsePlatform.standardGlobals();
+		Varargs v = globals.load(
+				"local function sum(a, b, c) local s = 0 for i = a, b, c do s = s + i end return s end\n" +
+				"return sum(1, 10, 1), sum(10, 1, -3), sum(0.5, 2, 0.5), sum(1, 2.5, 1),\n" +
+				"  sum('1', '4', '1'), sum(2147483646, 2147483647, 1), sum(-2147483648, -2147483647, 1)\n",
+				"for").invoke();
+		assertEquals(55, v.arg(1).toint());
+		assertEquals(22, v.arg(2).toint());
+		assertEquals(LuaValue.valueOf(5), v.arg(3));
+		assertEquals(3, v.arg(4).toint());
+		assertEquals(10, v.arg(5).toint());
+		assertEquals(LuaValue.valueOf(4294967293.), v.arg(6));
+		assertEquals(LuaValue.valueOf(-4294967295.), v.arg(7));
+	}
+}
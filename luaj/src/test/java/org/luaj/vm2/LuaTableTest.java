@@ -0,0 +1,208 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/** Tests of the open-addressing hash part of {@link LuaTable} and its {@link Slot} form for weak tables. */
+public class LuaTableTest {
+
+	private static LuaString key(int i) {
+		return LuaValue.valueOf("k"+i);
+	}
+
+	private static LuaTable filled(int n) {
+		LuaTable t = new LuaTable();
+		for ( int i = 0; i < n; i++ )
+			t.set(key(i), LuaValue.valueOf(i));
+		return t;
+	}
+
+	private static void assertContents(LuaTable t, int n) {
+		for ( int i = 0; i < n; i++ )
+			assertEquals(i, t.get(key(i)).toint());
+		int count = 0;
+		for ( Varargs e = t.next(LuaValue.NIL); !e.arg1().isnil(); e = t.next(e.arg1()) )
+			++count;
+		assertEquals(n, count);
+	}
+
+	@Test
+	public void deleteEachKeyDuringNext() {
+		int[] sizes = { 3, 8, 9, 100 };
+		for ( int s = 0; s < sizes.length; s++ ) {
+			LuaTable t = filled(sizes[s]);
+			Set seen = new HashSet();
+			for ( Varargs e = t.next(LuaValue.NIL); !e.arg1().isnil(); e = t.next(e.arg1()) ) {
+				assertTrue(seen.add(e.arg1().tojstring()));
+				t.set(e.arg1(), LuaValue.NIL);
+			}
+			assertEquals(sizes[s], seen.size());
+			assertTrue(t.next(LuaValue.NIL).arg1().isnil());
+		}
+	}
+
+	@Test
+	public void deleteOtherKeysDuringPairs() {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaValue v = globals.load(
+				"local t = {}\n" +
+				"for i = 1, 200 do t['k'..i] = i end\n" +
+				"local seen = 0\n" +
+				"for k, v in pairs(t) do\n" +
+				"  seen = seen + 1\n" +
+				"  t[k] = nil\n" +
+				"  local other = 'k'..(201 - v)\n" +
+				"  t[other] = nil\n" +
+				"end\n" +
+				"return seen, next(t)\n", "pairs").call();
+		assertTrue(v.toint() > 0 && v.toint() <= 200);
+		LuaValue w = globals.load(
+				"local t = {}\n" +
+				"for i = 1, 200 do t['k'..i] = i end\n" +
+				"for k in pairs(t) do t[k] = nil end\n" +
+				"return next(t)\n", "clear").call();
+		assertTrue(w.isnil());
+	}
+
+	@Test
+	public void removedPositionReusedForAnotherKeyBumpsVersion() {
+		int[] sizes = { 4, 20 };
+		for ( int s = 0; s < sizes.length; s++ ) {
+			LuaTable t = filled(sizes[s]);
+			int position = t.hashindex(key(1));
+			t.set(key(1), LuaValue.NIL);
+			int version = t.version;
+			assertEquals(-1, t.hashindex(key(1)));
+
+			// setting the removed key again keeps its position and every cached position valid
+			t.set(key(1), LuaValue.valueOf(11));
+			assertEquals(version, t.version);
+			assertEquals(position, t.hashindex(key(1)));
+			assertEquals(11, t.get(key(1)).toint());
+
+			// a different key taking over the removed position invalidates cached positions
+			t.set(key(1), LuaValue.NIL);
+			LuaString other = LuaValue.valueOf("other");
+			for ( int i = 0; t.hashindex(other) != position; i++ ) {
+				assertTrue(i < 10000);
+				t.set(other, LuaValue.NIL);
+				other = LuaValue.valueOf("other"+i);
+				t.set(other, LuaValue.TRUE);
+			}
+			assertTrue(t.version > version);
+			assertTrue(t.get(key(1)).isnil());
+			assertEquals(LuaValue.TRUE, t.get(other));
+			for ( int i = 0; i < sizes[s]; i++ )
+				if ( i != 1 )
+					assertEquals(i, t.get(key(i)).toint());
+		}
+	}
+
+	@Test
+	public void cachedFieldIsNotReadThroughReusedPosition() {
+		Globals globals = JsePlatform.standardGlobals();
+		Varargs v = globals.load(
+				"local t = { a = 1, b = 2, c = 3 }\n" +
+				"local function getb(t) return t.b end\n" +
+				"for i = 1, 5 do assert(getb(t) == 2) end\n" +
+				"t.b = nil\n" +
+				"t.d = 4\n" +
+				"return getb(t), t.d\n", "reuse").invoke();
+		assertTrue(v.arg1().isnil());
+		assertEquals(4, v.arg(2).toint());
+	}
+
+	@Test
+	public void switchingBetweenWeakAndStrongKeepsEntries() {
+		LuaTable t = filled(50);
+		for ( int i = 1; i <= 5; i++ )
+			t.set(LuaValue.valueOf(1000 * i), LuaValue.valueOf(i));
+		t.set(key(7), LuaValue.NIL);
+		t.set(key(8), LuaValue.NIL);
+		String[] modes = { "k", "", "v", "kv", "" };
+		for ( int m = 0; m < modes.length; m++ ) {
+			LuaTable meta = new LuaTable();
+			if ( modes[m].length() > 0 )
+				meta.set(LuaValue.valueOf("__mode"), LuaValue.valueOf(modes[m]));
+			t.setmetatable(meta);
+			if ( modes[m].length() > 0 )
+				assertNull(t.hashKeys);
+			else
+				assertNotNull(t.hashKeys);
+			for ( int i = 0; i < 50; i++ )
+				if ( i == 7 || i == 8 )
+					assertTrue(t.get(key(i)).isnil());
+				else
+					assertEquals(i, t.get(key(i)).toint());
+			for ( int i = 1; i <= 5; i++ )
+				assertEquals(i, t.get(1000 * i).toint());
+			int count = 0;
+			for ( Varargs e = t.next(LuaValue.NIL); !e.arg1().isnil(); e = t.next(e.arg1()) )
+				++count;
+			assertEquals(53, count);
+		}
+		t.setmetatable(null);
+		assertNotNull(t.hashKeys);
+		t.set(key(7), LuaValue.valueOf(7));
+		t.set(key(8), LuaValue.valueOf(8));
+		for ( int i = 1; i <= 5; i++ )
+			t.set(LuaValue.valueOf(1000 * i), LuaValue.NIL);
+		assertContents(t, 50);
+	}
+
+	@Test
+	public void smallTableGrowsPastSmallCapacity() {
+		LuaTable t = new LuaTable();
+		for ( int n = 1; n <= 40; n++ ) {
+			t.set(key(n - 1), LuaValue.valueOf(n - 1));
+			assertContents(t, n);
+			if ( n <= 8 )
+				assertTrue(t.getHashLength() <= 8);
+			else
+				assertTrue(t.getHashLength() > 8);
+		}
+	}
+
+	@Test
+	public void smallTableWithRemovedKeysGrows() {
+		LuaTable t = filled(8);
+		t.set(key(2), LuaValue.NIL);
+		t.set(key(5), LuaValue.NIL);
+		for ( int i = 8; i < 12; i++ )
+			t.set(key(i), LuaValue.valueOf(i));
+		t.set(key(2), LuaValue.valueOf(2));
+		t.set(key(5), LuaValue.valueOf(5));
+		assertContents(t, 12);
+		assertFalse(t.get(key(12)).toboolean());
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+public class LuaThreadTest {
+
+	/** Resumes each of 20 coroutines 100 times, then lets it finish, 
+	 * and returns the sum of the last values they yielded. */
+	private static final String ROUND_TRIPS =
+			"local total = 0\n" +
+			"for c = 1, 20 do\n" +
+			"  local co = coroutine.create(function(a)\n" +
+			"    local s = a\n" +
+			"    while true do\n" +
+			"      local x = coroutine.yield(s)\n" +
+			"      if x == nil then return 'done' end\n" +
+			"      s = s + x\n" +
+			"    end\n" +
+			"  end)\n" +
+			"  local ok, v = coroutine.resume(co, c)\n" +
+			"  for i = 1, 100 do ok, v = coroutine.resume(co, i) end\n" +
+			"  local ok2, d = coroutine.resume(co)\n" +
+			"  assert(ok and ok2 and d == 'done' and coroutine.status(co) == 'dead')\n" +
+			"  total = total + v\n" +
+			"end\n" +
+			"return total\n";
+
+	private static int roundTrips(Executor executor) {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.executor = executor;
+		return globals.load(ROUND_TRIPS, "roundtrips").call().toint();
+	}
+
+	@Test
+	public void resumeAndYieldOnPlatformThreads() {
+		assertEquals(210 + 20 * 5050, roundTrips(LuaThread.PLATFORM_THREADS));
+	}
+
+	@Test
+	public void resumeAndYieldOnPooledExecutor() {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			assertEquals(210 + 20 * 5050, roundTrips(pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void resumeAndYieldOnVirtualThreads() {
+		Executor virtual = LuaThread.virtualThreads();
+		if ( virtual == null )
+			return; // runtime without virtual threads
+		assertEquals(210 + 20 * 5050, roundTrips(virtual));
+	}
+
+	@Test
+	public void rejectedStartLeavesCoroutineResumable() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.executor = new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("pool is shut down");
+			}
+		};
+		LuaThread co = new LuaThread(globals, globals.load("return ... + 1", "inc"));
+		Varargs v = co.resume(LuaValue.valueOf(1));
+		assertFalse(v.arg1().toboolean());
+		assertTrue(v.arg(2).tojstring(), v.arg(2).tojstring().indexOf("pool is shut down") >= 0);
+		assertEquals("suspended", co.getStatus());
+
+		globals.executor = LuaThread.PLATFORM_THREADS;
+		v = co.resume(LuaValue.valueOf(1));
+		assertTrue(v.arg1().toboolean());
+		assertEquals(2, v.arg(2).toint());
+		assertEquals("dead", co.getStatus());
+	}
+}
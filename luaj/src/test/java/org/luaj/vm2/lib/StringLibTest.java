@@ -0,0 +1,132 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/** Compares the compiled and cached pattern matching of a default StringLib 
+ * with a StringLib(0), which interprets every pattern directly. */
+public class StringLibTest {
+
+	private static final String[] PATTERNS = {
+		"", "a", "abc", "^a", "a$", "^$", ".", "%a+", "%d+", "%s*", "[%w_]+", "[^%s]+", "[a-c]+",
+		"(a)(b)", "()a()", "(a*)", "a-b", "a?b", "%bxy", "%f[%w]%w+", "(%w+)=(%w+)",
+		"%((%d+)%)", "[%]]", "[]]", "[^]]", "%%", "(.)%1", "x*$", ".-", "^(.-)%s*$",
+		// malformed patterns, which must raise the same errors either way
+		")", "(", "%", "[a", "[^", "%b", "%bx", "%f", "%fa", "(()", "%1", "(a)%2", "%g(",
+	};
+
+	private static final String[] SUBJECTS = {
+		"", "a", "abc", "aab", "b", "  key=value  ", "x(12)y", "]]", "%%", "aa bb cc", "xay", "ab)",
+	};
+
+	private final Globals cached = JsePlatform.standardGlobals();
+	private final Globals direct = JsePlatform.standardGlobals();
+	{
+		direct.load(new StringLib(0));
+	}
+
+	@Test
+	public void matchErrorsLikeReferenceLua() {
+		assertEquals("error: invalid pattern capture", run(cached, "match", "a", ")"));
+		assertEquals("error: invalid pattern capture", run(direct, "match", "a", ")"));
+		assertEquals("error: invalid pattern capture", run(cached, "gsub", "a)", ")"));
+		assertEquals("2 2", run(cached, "find", "a)", ")"));
+	}
+
+	@Test
+	public void cachedMatchesDirect() {
+		String[] functions = { "find", "match", "gmatch", "gsub" };
+		for ( int repeat = 0; repeat < 2; repeat++ )
+			for ( int f = 0; f < functions.length; f++ )
+				for ( int p = 0; p < PATTERNS.length; p++ )
+					for ( int s = 0; s < SUBJECTS.length; s++ )
+						compare(functions[f], SUBJECTS[s], PATTERNS[p]);
+	}
+
+	@Test
+	public void cachedMatchesDirectOnRandomPatterns() {
+		Random random = new Random(21);
+		String[] functions = { "find", "match", "gmatch", "gsub" };
+		String atoms = "ab.%()[]^$*+-?1";
+		for ( int i = 0; i < 20000; i++ ) {
+			StringBuffer pattern = new StringBuffer();
+			for ( int n = random.nextInt(6); --n >= 0; ) {
+				char c = atoms.charAt(random.nextInt(atoms.length()));
+				pattern.append(c);
+				if ( c == '%' )
+					pattern.append("adsw%b(f[1".charAt(random.nextInt(10)));
+			}
+			StringBuffer subject = new StringBuffer();
+			for ( int n = random.nextInt(8); --n >= 0; )
+				subject.append("ab()[] 1".charAt(random.nextInt(8)));
+			compare(functions[random.nextInt(functions.length)], subject.toString(), pattern.toString());
+		}
+	}
+
+	private void compare(String function, String subject, String pattern) {
+		String expected = run(direct, function, subject, pattern);
+		String actual = run(cached, function, subject, pattern);
+		assertTrue(function+"("+subject+", "+pattern+"): "+actual+" instead of "+expected, expected.equals(actual));
+	}
+
+	/** Call a string function, and describe its results or its error. */
+	private static String run(Globals globals, String function, String subject, String pattern) {
+		LuaValue f = globals.get("string").get(function);
+		LuaValue s = LuaValue.valueOf(subject), p = LuaValue.valueOf(pattern);
+		try {
+			if ( function.equals("gmatch") ) {
+				LuaValue iterator = f.call(s, p);
+				StringBuffer sb = new StringBuffer();
+				for ( int n = 0; n < 100; n++ ) {
+					Varargs v = iterator.invoke();
+					if ( v.arg1().isnil() )
+						break;
+					sb.append(describe(v)).append(';');
+				}
+				return sb.toString();
+			}
+			if ( function.equals("gsub") )
+				return describe(f.invoke(LuaValue.varargsOf(s, p, LuaValue.valueOf("<%0>"))));
+			return describe(f.invoke(s, p));
+		} catch ( LuaError e ) {
+			return "error: "+e.getMessage();
+		}
+	}
+
+	private static String describe(Varargs v) {
+		StringBuffer sb = new StringBuffer();
+		for ( int i = 1; i <= v.narg(); i++ )
+			sb.append(i > 1? " ": "").append(v.arg(i).tojstring());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+
+public class JseIoLibTest {
+
+	@Test
+	public void unclosedWriteIsNotLostWhenCollected() throws Exception {
+		File f = File.createTempFile("luaj", ".txt");
+		f.deleteOnExit();
+		Globals globals = JsePlatform.standardGlobals();
+		LuaValue got = globals.load(
+				"local p = ...\n" +
+				"local function w() local f = io.open(p, 'w') f:write('hello\\n') end\n" +
+				"w()\n" +
+				"local s\n" +
+				"for i = 1, 20 do\n" +
+				"  collectgarbage()\n" +
+				"  local f = io.open(p)\n" +
+				"  s = f:read('*a')\n" +
+				"  f:close()\n" +
+				"  if s ~= '' then break end\n" +
+				"end\n" +
+				"return s\n", "unclosed").call(LuaValue.valueOf(f.getPath()));
+		assertEquals("hello\n", got.tojstring());
+		assertEquals("hello\n", read(f));
+	}
+
+	@Test
+	public void unclosedWriteIsVisibleAfterFlush() throws Exception {
+		File f = File.createTempFile("luaj", ".txt");
+		f.deleteOnExit();
+		Globals globals = JsePlatform.standardGlobals();
+		globals.load(
+				"local f = io.open(..., 'w')\n" +
+				"f:write('a', 1, '\\n')\n" +
+				"f:flush()\n" +
+				"held = f\n", "flushed").call(LuaValue.valueOf(f.getPath()));
+		assertEquals("a1\n", read(f));
+	}
+
+	private static String read(File f) throws Exception {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] b = new byte[(int) f.length()];
+			int n = 0;
+			for ( int r; n < b.length && (r = in.read(b, n, b.length - n)) > 0; n += r )
+				;
+			return new String(b, 0, n, "ISO-8859-1");
+		} finally {
+			in.close();
+		}
+	}
+}
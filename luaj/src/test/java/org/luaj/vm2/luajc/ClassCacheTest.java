@@ -0,0 +1,111 @@
+/*******************************************************************************
+* Copyright (c) 2012 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+public class ClassCacheTest {
+
+	private static final String SCRIPT = "local function add(a, b) return a + b end\nreturn add(1, 2)\n";
+
+	@Test
+	public void corruptEntryIsRegenerated() throws Exception {
+		File dir = File.createTempFile("luajc", "cache");
+		dir.delete();
+		try {
+			assertEquals(3, run(dir));
+			File[] entries = dir.listFiles();
+			assertEquals(1, entries.length);
+			String key = entries[0].getName().substring(0, entries[0].getName().length() - ".classes".length());
+			ClassCache cache = new ClassCache(dir);
+			Hashtable original = cache.get(key);
+			assertNotNull(original);
+
+			// truncate every class, so that loading it throws ClassFormatError
+			Hashtable corrupt = new Hashtable();
+			for ( Enumeration e = original.keys(); e.hasMoreElements(); ) {
+				String classname = (String) e.nextElement();
+				byte[] bytecode = (byte[]) original.get(classname);
+				corrupt.put(classname, Arrays.copyOf(bytecode, bytecode.length / 2));
+			}
+			cache.put(key, corrupt);
+
+			assertEquals(3, run(dir));
+			Hashtable regenerated = cache.get(key);
+			assertNotNull(regenerated);
+			assertEquals(original.size(), regenerated.size());
+			for ( Enumeration e = original.keys(); e.hasMoreElements(); ) {
+				String classname = (String) e.nextElement();
+				assertTrue(classname, Arrays.equals((byte[]) original.get(classname), (byte[]) regenerated.get(classname)));
+			}
+		} finally {
+			File[] entries = dir.listFiles();
+			for ( int i = 0; entries != null && i < entries.length; i++ )
+				entries[i].delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+		File dir = File.createTempFile("luajc", "cache");
+		dir.delete();
+		try {
+			Hashtable classes = new Hashtable();
+			classes.put("c", new byte[1000]);
+			ClassCache cache = new ClassCache(dir, 2500);
+			cache.put("a", classes);
+			Thread.sleep(50);
+			cache.put("b", classes);
+			Thread.sleep(50);
+			assertNotNull(cache.get("a"));
+			Thread.sleep(50);
+			cache.put("c", classes);
+			assertNotNull(cache.get("a"));
+			assertEquals(null, cache.get("b"));
+			assertNotNull(cache.get("c"));
+			assertEquals(2, dir.listFiles().length);
+		} finally {
+			File[] entries = dir.listFiles();
+			for ( int i = 0; entries != null && i < entries.length; i++ )
+				entries[i].delete();
+			dir.delete();
+		}
+	}
+
+	private static int run(File dir) {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaJC.install(globals, dir);
+		return globals.load(SCRIPT, "add").call().toint();
+	}
+}